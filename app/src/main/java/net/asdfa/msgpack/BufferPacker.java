@@ -0,0 +1,399 @@
+/**
+ * Copyright (c) 2016 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.asdfa.msgpack;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import static net.asdfa.msgpack.MsgPack.*;
+
+/**
+ * Reusable msgpack encoder that writes directly into a ByteBuffer, growing
+ * it only when an item doesn't fit.  Supports the same types as
+ * MsgPack.pack().
+ *
+ * A packer can optionally reserve a 4-byte big-endian length header in
+ * front of the encoded data, which is filled in by endFrame().  This
+ * allows length-prefixed messages to be built without copying the
+ * payload a second time.
+ */
+public class BufferPacker {
+	protected static final int FRAME_HEADER_SIZE = 4;
+
+	private ByteBuffer buf;
+	private int frameStart = -1;
+
+	public BufferPacker(ByteBuffer buf) {
+		reset(buf);
+	}
+
+	/**
+	 * Discards any packed data and starts writing at the beginning of
+	 * the given buffer.
+	 */
+	public void reset(ByteBuffer buf) {
+		buf.clear();
+		this.buf = buf;
+		frameStart = -1;
+	}
+
+	/**
+	 * Returns the buffer currently being written.  This may not be the
+	 * buffer originally passed in, if it had to be grown.
+	 */
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Reserves space for a length header at the current position.
+	 */
+	public void beginFrame() {
+		if (frameStart != -1)
+			throw new IllegalStateException("Frame already started");
+		ensure(FRAME_HEADER_SIZE);
+		frameStart = buf.position();
+		buf.position(frameStart + FRAME_HEADER_SIZE);
+	}
+
+	/**
+	 * Fills in the length header reserved by beginFrame() and flips the
+	 * buffer for reading.
+	 * @return the buffer, positioned at the start of the frame header
+	 */
+	public ByteBuffer endFrame() {
+		if (frameStart == -1)
+			throw new IllegalStateException("No frame started");
+		int length = buf.position() - frameStart - FRAME_HEADER_SIZE;
+		buf.putInt(frameStart, length);
+		buf.flip();
+		buf.position(frameStart);
+		frameStart = -1;
+		return buf;
+	}
+
+	/**
+	 * Packs an item using the msgpack protocol.
+	 *
+	 * Warning: this does not do any recursion checks. If you pass a cyclic object,
+	 * you will run in an infinite loop until you run out of memory.
+	 *
+	 * @param item
+	 * @throws UnpackableItemException If the given data cannot be packed.
+	 */
+	public void pack(Object item) {
+		if (item == null) {
+			packNull();
+		} else if (item instanceof Boolean) {
+			packBoolean((Boolean)item);
+		} else if (item instanceof Number) {
+			if (item instanceof Float) {
+				ensure(5);
+				buf.put(MP_FLOAT);
+				buf.putFloat((Float)item);
+			} else if (item instanceof Double) {
+				packDouble((Double)item);
+			} else {
+				packLong(((Number)item).longValue());
+			}
+		} else if (item instanceof String) {
+			packString((String)item);
+		} else if (item instanceof byte[]) {
+			byte[] data = (byte[])item;
+			packRawHeader(data.length);
+			ensure(data.length);
+			buf.put(data);
+		} else if (item instanceof ByteBuffer) {
+			// The *whole* buffer, as with MsgPack.pack()
+			ByteBuffer data = ((ByteBuffer)item).duplicate();
+			data.clear();
+			packRawHeader(data.remaining());
+			ensure(data.remaining());
+			buf.put(data);
+		} else if (item instanceof Timestamp) {
+			Extension ext = ((Timestamp)item).toExtension();
+			packExtension(ext.type, ext.data);
+		} else if (item instanceof Extension) {
+			Extension ext = (Extension)item;
+			packExtension(ext.type, ext.data);
+		} else if (item instanceof List) {
+			List<?> list = (List<?>)item;
+			packArrayHeader(list.size());
+			for (Object element : list) {
+				pack(element);
+			}
+		} else if (item instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>)item;
+			packMapHeader(map.size());
+			for (Map.Entry<?, ?> kvp : map.entrySet()) {
+				pack(kvp.getKey());
+				pack(kvp.getValue());
+			}
+		} else {
+			throw new UnpackableItemException("Cannot msgpack object of type " + item.getClass().getCanonicalName());
+		}
+	}
+
+	public void packNull() {
+		ensure(1);
+		buf.put(MP_NULL);
+	}
+
+	public void packBoolean(boolean value) {
+		ensure(1);
+		buf.put(value ? MP_TRUE : MP_FALSE);
+	}
+
+	public void packDouble(double value) {
+		ensure(9);
+		buf.put(MP_DOUBLE);
+		buf.putDouble(value);
+	}
+
+	public void packLong(long value) {
+		ensure(9);
+		if (value >= 0) {
+			if (value <= MAX_7BIT) {
+				buf.put((byte)(value | MP_FIXNUM));
+			} else if (value <= MAX_8BIT) {
+				buf.put(MP_UINT8);
+				buf.put((byte)value);
+			} else if (value <= MAX_16BIT) {
+				buf.put(MP_UINT16);
+				buf.putShort((short)value);
+			} else if (value <= MAX_32BIT) {
+				buf.put(MP_UINT32);
+				buf.putInt((int)value);
+			} else {
+				buf.put(MP_UINT64);
+				buf.putLong(value);
+			}
+		} else {
+			if (value >= -(MAX_5BIT + 1)) {
+				buf.put((byte)value);
+			} else if (value >= -(MAX_7BIT + 1)) {
+				buf.put(MP_INT8);
+				buf.put((byte)value);
+			} else if (value >= -(MAX_15BIT + 1)) {
+				buf.put(MP_INT16);
+				buf.putShort((short)value);
+			} else if (value >= -(MAX_31BIT + 1)) {
+				buf.put(MP_INT32);
+				buf.putInt((int)value);
+			} else {
+				buf.put(MP_INT64);
+				buf.putLong(value);
+			}
+		}
+	}
+
+	/**
+	 * Packs a string as UTF-8, encoding it directly into the output
+	 * buffer.
+	 */
+	public void packString(String value) {
+		int length = value.length();
+		int size = utf8Length(value);
+		packRawHeader(size);
+		ensure(size);
+		if (size == length) {
+			// ASCII, apart from any unpaired surrogates
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				buf.put(c < 0x80 ? (byte)c : (byte)'?');
+			}
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf.put((byte)c);
+			} else if (c < 0x800) {
+				buf.put((byte)(0xc0 | (c >> 6)));
+				buf.put((byte)(0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf.put((byte)(0xf0 | (cp >> 18)));
+				buf.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+				buf.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+				buf.put((byte)(0x80 | (cp & 0x3f)));
+			} else if (isSurrogate(c)) {
+				// Unpaired surrogate; replace as String.getBytes() does
+				buf.put((byte)'?');
+			} else {
+				buf.put((byte)(0xe0 | (c >> 12)));
+				buf.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+				buf.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	public void packRawHeader(int size) {
+		ensure(5);
+		if (size <= MAX_5BIT) {
+			buf.put((byte)(size | MP_FIXRAW));
+		} else if (size <= MAX_16BIT) {
+			buf.put(MP_RAW16);
+			buf.putShort((short)size);
+		} else {
+			buf.put(MP_RAW32);
+			buf.putInt(size);
+		}
+	}
+
+	/**
+	 * Packs binary data with the bin family of types.  Use pack() for
+	 * the legacy raw encoding.
+	 */
+	public void packBinary(byte[] data, int offset, int length) {
+		ensure(5 + length);
+		if (length <= MAX_8BIT) {
+			buf.put(MP_BIN8);
+			buf.put((byte)length);
+		} else if (length <= MAX_16BIT) {
+			buf.put(MP_BIN16);
+			buf.putShort((short)length);
+		} else {
+			buf.put(MP_BIN32);
+			buf.putInt(length);
+		}
+		buf.put(data, offset, length);
+	}
+
+	public void packExtension(byte type, byte[] data) {
+		int length = data.length;
+		ensure(6 + length);
+		switch (length) {
+			case 1:
+				buf.put(MP_FIXEXT1);
+				break;
+			case 2:
+				buf.put(MP_FIXEXT2);
+				break;
+			case 4:
+				buf.put(MP_FIXEXT4);
+				break;
+			case 8:
+				buf.put(MP_FIXEXT8);
+				break;
+			case 16:
+				buf.put(MP_FIXEXT16);
+				break;
+			default:
+				if (length <= MAX_8BIT) {
+					buf.put(MP_EXT8);
+					buf.put((byte)length);
+				} else if (length <= MAX_16BIT) {
+					buf.put(MP_EXT16);
+					buf.putShort((short)length);
+				} else {
+					buf.put(MP_EXT32);
+					buf.putInt(length);
+				}
+		}
+		buf.put(type);
+		buf.put(data);
+	}
+
+	/**
+	 * Appends data that is already msgpack-encoded, such as a constant
+	 * prefix packed ahead of time.  Consumes the remaining bytes of data.
+	 */
+	public void putPacked(ByteBuffer data) {
+		ensure(data.remaining());
+		buf.put(data);
+	}
+
+	public void packArrayHeader(int size) {
+		ensure(5);
+		if (size <= MAX_4BIT) {
+			buf.put((byte)(size | MP_FIXARRAY));
+		} else if (size <= MAX_16BIT) {
+			buf.put(MP_ARRAY16);
+			buf.putShort((short)size);
+		} else {
+			buf.put(MP_ARRAY32);
+			buf.putInt(size);
+		}
+	}
+
+	public void packMapHeader(int size) {
+		ensure(5);
+		if (size <= MAX_4BIT) {
+			buf.put((byte)(size | MP_FIXMAP));
+		} else if (size <= MAX_16BIT) {
+			buf.put(MP_MAP16);
+			buf.putShort((short)size);
+		} else {
+			buf.put(MP_MAP32);
+			buf.putInt(size);
+		}
+	}
+
+	private static int utf8Length(String value) {
+		int length = value.length();
+		int size = length;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				size += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(value.charAt(i + 1))) {
+				// 4 bytes for 2 chars
+				size += 2;
+				i++;
+			} else if (isSurrogate(c)) {
+				// replaced by '?'
+				continue;
+			} else {
+				size += 2;
+			}
+		}
+		return size;
+	}
+
+	// Character.isSurrogate() requires API 19
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	private void ensure(int count) {
+		if (buf.remaining() >= count)
+			return;
+		int capacity = Math.max(buf.capacity() * 2, buf.position() + count);
+		ByteBuffer grown = buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		buf.flip();
+		grown.put(buf);
+		buf = grown;
+	}
+}
@@ -37,7 +37,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +57,9 @@ import java.util.Map;
  *     byte, short, int, and long are considered interchangeable when
  *     packing/unpacking, BigIntegers will be used for large values in uint64 values
  * - String (UTF-8), byte[], or ByteBuffer (the *whole* buffer) (always unpacked as a byte[] unless you ask for something else)
+ *     These are packed as legacy raw values, which modern decoders treat as strings.
+ *     Values of the newer bin types are always unpacked as byte[] (or ByteBuffer).
+ * - MsgPack.Extension for ext values, and MsgPack.Timestamp for the timestamp extension
  * - Map (any type may be used for packing, always unpacked as a HashMap)
  * - List (any type may be used for packing, always unpacked as an ArrayList)
  * Passing any other types will throw an IllegalArumentException.
@@ -83,8 +88,27 @@ public class MsgPack {
 		return out.toByteArray();
 	}
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
 	public static final int UNPACK_RAW_AS_STRING = 0x1;
 	public static final int UNPACK_RAW_AS_BYTE_BUFFER = 0x2;
+	public static final int UNPACK_INTERN_STRINGS = 0x4;
+	// Internal: the value being decoded is a map key
+	private static final int UNPACK_KEY = 0x40000000;
+
+	/**
+	 * Registers s as the canonical instance of its value.  From then on,
+	 * decoding with UNPACK_INTERN_STRINGS, or with
+	 * Reader.getCanonicalString(), returns the registered instance for
+	 * equal strings, so they can be compared by identity.  Registered
+	 * strings are never released; only register a small fixed set of
+	 * values such as message types.
+	 * @return s, or an equal string registered earlier
+	 */
+	public static String registerString(String s) {
+		return StringInterner.get().register(s);
+	}
 
 	/**
 	 * This is the same as calling unpack(data, 0)
@@ -107,13 +131,34 @@ public class MsgPack {
 	 *    (no option) - All raw bytes are decoded as a byte[]
 	 *    OPTION_RAW_AS_STRING - All raw bytes are decoded as a UTF-8 string, with invalid codepoints replaced with a placeholder
 	 *    OPTION_RAW_AS_BYTE_BUFFER - All raw bytes are decoded as ByteBuffers (with a backing array)
+	 * For strings:
+	 *    OPTION_INTERN_STRINGS - Strings registered with registerString() are returned as
+	 *        the registered instance.  Short map keys are returned as shared instances
+	 *        from a bounded cache, avoiding an allocation for repeated keys.  Other
+	 *        strings are decoded as usual.
 	 * @return the unpacked data
 	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked.
 	 */
 	public static Object unpack(byte[] data, int options) throws InvalidMsgPackDataException {
+		return unpack(data, options, null);
+	}
+
+
+	/**
+	 * Unpacks the given data, failing as soon as it would exceed the given
+	 * limits.
+	 *
+	 * @param data packed data
+	 * @param options Bitmask of options, @see unpack(byte[] data, int options)
+	 * @param limits decoding limits, or null for none
+	 * @return the unpacked data
+	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked
+	 * or exceeds the limits.
+	 */
+	public static Object unpack(byte[] data, int options, Limits limits) throws InvalidMsgPackDataException {
 		ByteArrayInputStream in = new ByteArrayInputStream(data);
 		try {
-			return unpack(new DataInputStream(in), options);
+			return unpack(new DataInputStream(in), options, limits);
 		} catch (InvalidMsgPackDataException ex) {
 			//InvalidMsgPackDataException is a type of IOException, so throw it
 			//seperately
@@ -125,6 +170,45 @@ public class MsgPack {
 	}
 
 
+	/**
+	 * Unpacks a single item from the given buffer, starting at its current
+	 * position and stopping at its limit.  The buffer may be a heap or a
+	 * direct buffer; bytes are read with absolute gets, so no intermediate
+	 * stream objects are created.  On success the buffer's position is
+	 * advanced past the unpacked item.
+	 *
+	 * @param buf packed data
+	 * @param options Bitmask of options, @see unpack(byte[] data, int options)
+	 * With OPTION_RAW_AS_BYTE_BUFFER, raw values are returned as read-only
+	 * slices of buf rather than copies; they are only valid for as long
+	 * as the caller leaves the underlying bytes untouched.
+	 * @return the unpacked data
+	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked.
+	 */
+	public static Object unpack(ByteBuffer buf, int options) throws InvalidMsgPackDataException {
+		return unpack(buf, options, null);
+	}
+
+
+	/**
+	 * Unpacks a single item from the given buffer, as unpack(ByteBuffer,
+	 * int), failing as soon as the item would exceed the given limits.
+	 *
+	 * @param buf packed data
+	 * @param options Bitmask of options, @see unpack(byte[] data, int options)
+	 * @param limits decoding limits, or null for none
+	 * @return the unpacked data
+	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked
+	 * or exceeds the limits.
+	 */
+	public static Object unpack(ByteBuffer buf, int options, Limits limits) throws InvalidMsgPackDataException {
+		BufferInput in = new BufferInput(buf);
+		Object ret = unpack(in, options, Budget.forLimits(limits));
+		buf.position(in.pos);
+		return ret;
+	}
+
+
 	protected static final int MAX_4BIT = 0xf;
 	protected static final int MAX_5BIT = 0x1f;
 	protected static final int MAX_7BIT = 0x7f;
@@ -134,6 +218,9 @@ public class MsgPack {
 	protected static final int MAX_31BIT = 0x7fffffff;
 	protected static final long MAX_32BIT = 0xffffffffL;
 
+	// Largest initial capacity given to a decoded container
+	protected static final int MAX_PREALLOCATE = 64;
+
 	//these values are from http://wiki.msgpack.org/display/MSGPACK/Format+specification
 	protected static final byte MP_NULL = (byte)0xc0;
 	protected static final byte MP_FALSE = (byte)0xc2;
@@ -169,6 +256,22 @@ public class MsgPack {
 	protected static final int MP_FIXRAW_INT = 0xa0;
 	protected static final byte MP_RAW16 = (byte)0xda;
 	protected static final byte MP_RAW32 = (byte)0xdb;
+	protected static final byte MP_STR8 = (byte)0xd9;//str8 is part of the raw family
+
+	protected static final byte MP_BIN8 = (byte)0xc4;
+	protected static final byte MP_BIN16 = (byte)0xc5;
+	protected static final byte MP_BIN32 = (byte)0xc6;
+
+	protected static final byte MP_FIXEXT1 = (byte)0xd4;
+	protected static final byte MP_FIXEXT2 = (byte)0xd5;
+	protected static final byte MP_FIXEXT4 = (byte)0xd6;
+	protected static final byte MP_FIXEXT8 = (byte)0xd7;
+	protected static final byte MP_FIXEXT16 = (byte)0xd8;
+	protected static final byte MP_EXT8 = (byte)0xc7;
+	protected static final byte MP_EXT16 = (byte)0xc8;
+	protected static final byte MP_EXT32 = (byte)0xc9;
+
+	protected static final byte EXT_TIMESTAMP = -1;
 
 	/**
 	 * Packs the item, streaming the data to the given OutputStream.
@@ -252,6 +355,39 @@ public class MsgPack {
 				out.writeInt(data.length);
 			}
 			out.write(data);
+		} else if (item instanceof Extension || item instanceof Timestamp) {
+			Extension ext = item instanceof Timestamp ? ((Timestamp)item).toExtension() : (Extension)item;
+			int size = ext.data.length;
+			switch (size) {
+				case 1:
+					out.write(MP_FIXEXT1);
+					break;
+				case 2:
+					out.write(MP_FIXEXT2);
+					break;
+				case 4:
+					out.write(MP_FIXEXT4);
+					break;
+				case 8:
+					out.write(MP_FIXEXT8);
+					break;
+				case 16:
+					out.write(MP_FIXEXT16);
+					break;
+				default:
+					if (size <= MAX_8BIT) {
+						out.write(MP_EXT8);
+						out.write(size);
+					} else if (size <= MAX_16BIT) {
+						out.write(MP_EXT16);
+						out.writeShort(size);
+					} else {
+						out.write(MP_EXT32);
+						out.writeInt(size);
+					}
+			}
+			out.write(ext.type);
+			out.write(ext.data);
 		} else if (item instanceof List) {
 			List<?> list = (List<?>)item;
 			if (list.size() <= MAX_4BIT) {
@@ -296,6 +432,26 @@ public class MsgPack {
 	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked.
 	 */
 	public static Object unpack(DataInputStream in, int options) throws IOException {
+		return unpack(in, options, (Limits)null);
+	}
+
+	/**
+	 * Unpacks a single item from the given stream, failing as soon as it
+	 * would exceed the given limits.  Since the amount of remaining input is
+	 * unknown, a byte limit is the only thing preventing a corrupt length
+	 * from causing a large allocation.
+	 * @param in Input stream to read from
+	 * @param options Bitmask of options, @see unpack(byte[] data, int options)
+	 * @param limits decoding limits, or null for none
+	 * @throws IOException if the underlying stream has an error
+	 * @throws InvalidMsgPackDataException If the given data cannot be unpacked
+	 * or exceeds the limits.
+	 */
+	public static Object unpack(DataInputStream in, int options, Limits limits) throws IOException {
+		return unpack(in, options, Budget.forLimits(limits));
+	}
+
+	protected static Object unpack(DataInputStream in, int options, Budget budget) throws IOException {
 		int value = in.read();
 		if (value < 0) throw new InvalidMsgPackDataException("No more input available when expecting a value");
 
@@ -340,27 +496,51 @@ public class MsgPack {
 				case MP_INT64:
 					return in.readLong();
 				case MP_ARRAY16:
-					return unpackList(in.readShort() & MAX_16BIT, in, options);
+					return unpackList(in.readShort() & MAX_16BIT, in, options, budget);
 				case MP_ARRAY32:
-					return unpackList(in.readInt(), in, options);
+					return unpackList(in.readInt(), in, options, budget);
 				case MP_MAP16:
-					return unpackMap(in.readShort() & MAX_16BIT, in, options);
+					return unpackMap(in.readShort() & MAX_16BIT, in, options, budget);
 				case MP_MAP32:
-					return unpackMap(in.readInt(), in, options);
+					return unpackMap(in.readInt(), in, options, budget);
 				case MP_RAW16:
-					return unpackRaw(in.readShort() & MAX_16BIT, in, options);
+					return unpackRaw(in.readShort() & MAX_16BIT, in, options, budget);
 				case MP_RAW32:
-					return unpackRaw(in.readInt(), in, options);
+					return unpackRaw(in.readInt(), in, options, budget);
+				case MP_STR8:
+					return unpackRaw(in.read(), in, options, budget);
+				case MP_BIN8:
+					return unpackBinary(in.read(), in, options, budget);
+				case MP_BIN16:
+					return unpackBinary(in.readShort() & MAX_16BIT, in, options, budget);
+				case MP_BIN32:
+					return unpackBinary(in.readInt(), in, options, budget);
+				case MP_FIXEXT1:
+					return unpackExtension(1, in, budget);
+				case MP_FIXEXT2:
+					return unpackExtension(2, in, budget);
+				case MP_FIXEXT4:
+					return unpackExtension(4, in, budget);
+				case MP_FIXEXT8:
+					return unpackExtension(8, in, budget);
+				case MP_FIXEXT16:
+					return unpackExtension(16, in, budget);
+				case MP_EXT8:
+					return unpackExtension(in.read(), in, budget);
+				case MP_EXT16:
+					return unpackExtension(in.readShort() & MAX_16BIT, in, budget);
+				case MP_EXT32:
+					return unpackExtension(in.readInt(), in, budget);
 			}
 
 			if (value >= MP_NEGATIVE_FIXNUM_INT && value <= MP_NEGATIVE_FIXNUM_INT + MAX_5BIT) {
 				return (byte)value;
 			} else if (value >= MP_FIXARRAY_INT && value <= MP_FIXARRAY_INT + MAX_4BIT) {
-				return unpackList(value - MP_FIXARRAY_INT, in, options);
+				return unpackList(value - MP_FIXARRAY_INT, in, options, budget);
 			} else if (value >= MP_FIXMAP_INT && value <= MP_FIXMAP_INT + MAX_4BIT) {
-				return unpackMap(value - MP_FIXMAP_INT, in, options);
+				return unpackMap(value - MP_FIXMAP_INT, in, options, budget);
 			} else if (value >= MP_FIXRAW_INT && value <= MP_FIXRAW_INT + MAX_5BIT) {
-				return unpackRaw(value - MP_FIXRAW_INT, in, options);
+				return unpackRaw(value - MP_FIXRAW_INT, in, options, budget);
 			} else if (value <= MAX_7BIT) {//MP_FIXNUM - the value is value as an int
 				return value;
 			} else {
@@ -371,38 +551,1185 @@ public class MsgPack {
 		}
 	}
 
-	protected static List<Object> unpackList(int size, DataInputStream in, int options) throws IOException {
+	protected static List<Object> unpackList(int size, DataInputStream in, int options, Budget budget) throws IOException {
+		options &= ~UNPACK_KEY;
 		if (size < 0) throw new InvalidMsgPackDataException("Array to unpack too large for Java (more than 2^31 elements)!");
-		List<Object> ret = new ArrayList<Object>(size);
+		budget.enter(size);
+		List<Object> ret = new ArrayList<Object>(initialCapacity(size));
 		for (int i = 0; i < size; ++i) {
-			ret.add(unpack(in, options));
+			ret.add(unpack(in, options, budget));
 		}
+		budget.exit();
 		return ret;
 	}
 
-	protected static Map<Object, Object> unpackMap(int size, DataInputStream in, int options) throws IOException {
+	protected static Map<Object, Object> unpackMap(int size, DataInputStream in, int options, Budget budget) throws IOException {
+		options &= ~UNPACK_KEY;
 		if (size < 0) throw new InvalidMsgPackDataException("Map to unpack too large for Java (more than 2^31 elements)!");
-		Map<Object, Object> ret = new HashMap<Object, Object>(size);
+		budget.enter(size);
+		Map<Object, Object> ret = new HashMap<Object, Object>(initialCapacity(size));
 		for (int i = 0; i < size; ++i) {
-			Object key = unpack(in, options);
-			Object value = unpack(in, options);
+			Object key = unpack(in, options | UNPACK_KEY, budget);
+			Object value = unpack(in, options, budget);
 			ret.put(key, value);
 		}
+		budget.exit();
 		return ret;
 	}
 
-	protected static Object unpackRaw(int size, DataInputStream in, int options) throws IOException {
+	protected static Object unpackRaw(int size, DataInputStream in, int options, Budget budget) throws IOException {
 		if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+		budget.chargeBytes(size);
 
 		byte[] data = new byte[size];
-		in.read(data);
+		in.readFully(data);
 
 		if ((options & UNPACK_RAW_AS_BYTE_BUFFER) != 0) {
 			return ByteBuffer.wrap(data);
 		} else if ((options & UNPACK_RAW_AS_STRING) != 0) {
-			return new String(data, "UTF-8");
+			if ((options & UNPACK_INTERN_STRINGS) != 0) {
+				StringInterner interner = StringInterner.get();
+				String s = (options & UNPACK_KEY) != 0 ? interner.intern(data, 0, size) : interner.lookup(data, 0, size);
+				if (s != null)
+					return s;
+			}
+			return decodeString(data, 0, size);
+		} else {
+			return data;
+		}
+	}
+
+	protected static Object unpackBinary(int size, DataInputStream in, int options, Budget budget) throws IOException {
+		if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+		budget.chargeBytes(size);
+
+		// Binary data is never decoded as a string
+		byte[] data = new byte[size];
+		in.readFully(data);
+		if ((options & UNPACK_RAW_AS_BYTE_BUFFER) != 0)
+			return ByteBuffer.wrap(data);
+		return data;
+	}
+
+	protected static Object unpackExtension(int size, DataInputStream in, Budget budget) throws IOException {
+		if (size < 0) throw new InvalidMsgPackDataException("Extension to unpack too large for Java (more than 2^31 bytes)!");
+		budget.chargeBytes(size);
+
+		byte type = in.readByte();
+		byte[] data = new byte[size];
+		in.readFully(data);
+		return makeExtension(type, data);
+	}
+
+	protected static Object makeExtension(byte type, byte[] data) throws InvalidMsgPackDataException {
+		if (type == EXT_TIMESTAMP)
+			return Timestamp.fromBytes(data);
+		return new Extension(type, data);
+	}
+
+	// Decode UTF-8, with a fast path for the common ASCII case
+	protected static String decodeString(byte[] data, int offset, int size) {
+		for (int i = offset; i < offset + size; i++) {
+			if (data[i] < 0)
+				return new String(data, offset, size, UTF8);
+		}
+		return new String(data, offset, size, ASCII);
+	}
+
+	protected static String decodeString(ByteBuffer buf, int start, int size) {
+		if (buf.hasArray())
+			return decodeString(buf.array(), buf.arrayOffset() + start, size);
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++) {
+			byte b = buf.get(start + i);
+			if (b < 0) {
+				byte[] data = new byte[size];
+				copyBytes(buf, start, data);
+				return new String(data, UTF8);
+			}
+			chars[i] = (char)b;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Caps on what a single unpack may consume.  Sizes in packed data come
+	 * straight from the input, so without limits a small corrupt or
+	 * hostile message can claim huge containers or strings; with them,
+	 * decoding fails as soon as a claim exceeds what is left.
+	 */
+	public static final class Limits {
+		/** Total size of raw, bin, and ext payloads */
+		public final long maxBytes;
+		/** Total number of array elements and map entries */
+		public final long maxElements;
+		/** Deepest nesting of arrays and maps */
+		public final int maxDepth;
+
+		public Limits(long maxBytes, long maxElements, int maxDepth) {
+			if (maxBytes < 0 || maxElements < 0 || maxDepth < 0)
+				throw new IllegalArgumentException("Limits must not be negative");
+			this.maxBytes = maxBytes;
+			this.maxElements = maxElements;
+			this.maxDepth = maxDepth;
+		}
+	}
+
+	/**
+	 * What remains of the Limits for one unpack call.  The shared NONE
+	 * instance imposes no limits and is never modified.
+	 */
+	protected static final class Budget {
+		static final Budget NONE = new Budget(null);
+
+		private final boolean limited;
+		private long bytes;
+		private long elements;
+		private int depth;
+
+		private Budget(Limits limits) {
+			limited = limits != null;
+			if (limited) {
+				bytes = limits.maxBytes;
+				elements = limits.maxElements;
+				depth = limits.maxDepth;
+			}
+		}
+
+		static Budget forLimits(Limits limits) {
+			return limits != null ? new Budget(limits) : NONE;
+		}
+
+		// Restores a budget made from the same limits
+		void refill(Limits limits) {
+			bytes = limits.maxBytes;
+			elements = limits.maxElements;
+			depth = limits.maxDepth;
+		}
+
+		boolean isLimited() {
+			return limited;
+		}
+
+		void chargeBytes(int count) throws InvalidMsgPackDataException {
+			if (!limited)
+				return;
+			bytes -= count;
+			if (bytes < 0)
+				throw new InvalidMsgPackDataException("Input exceeds the byte limit");
+		}
+
+		// Called before allocating a container with the given number of
+		// elements or entries
+		void enter(long count) throws InvalidMsgPackDataException {
+			if (!limited)
+				return;
+			if (--depth < 0)
+				throw new InvalidMsgPackDataException("Input exceeds the nesting limit");
+			elements -= count;
+			if (elements < 0)
+				throw new InvalidMsgPackDataException("Input exceeds the element limit");
+		}
+
+		void exit() {
+			if (limited)
+				depth++;
+		}
+	}
+
+	/**
+	 * Read cursor over a ByteBuffer using absolute gets, so the buffer's
+	 * own position and byte order are left alone until we are done.
+	 */
+	protected static final class BufferInput {
+		final ByteBuffer buf;
+		int pos;
+		final int limit;
+
+		BufferInput(ByteBuffer buf) {
+			this.buf = buf;
+			this.pos = buf.position();
+			this.limit = buf.limit();
+		}
+
+		void require(long count) throws InvalidMsgPackDataException {
+			if (count < 0 || limit - pos < count)
+				throw new InvalidMsgPackDataException("No more input available when expecting a value");
+		}
+
+		int readUnsignedByte() throws InvalidMsgPackDataException {
+			require(1);
+			return buf.get(pos++) & MAX_8BIT;
+		}
+
+		int readUnsignedShort() throws InvalidMsgPackDataException {
+			require(2);
+			int ret = ((buf.get(pos) & MAX_8BIT) << 8) | (buf.get(pos + 1) & MAX_8BIT);
+			pos += 2;
+			return ret;
+		}
+
+		int readInt() throws InvalidMsgPackDataException {
+			require(4);
+			int ret = ((buf.get(pos) & MAX_8BIT) << 24) |
+					((buf.get(pos + 1) & MAX_8BIT) << 16) |
+					((buf.get(pos + 2) & MAX_8BIT) << 8) |
+					(buf.get(pos + 3) & MAX_8BIT);
+			pos += 4;
+			return ret;
+		}
+
+		long readLong() throws InvalidMsgPackDataException {
+			long high = readInt() & MAX_32BIT;
+			long low = readInt() & MAX_32BIT;
+			return (high << 32) | low;
+		}
+	}
+
+	protected static Object unpack(BufferInput in, int options, Budget budget) throws InvalidMsgPackDataException {
+		int value = in.readUnsignedByte();
+
+		switch ((byte)value) {
+			case MP_NULL:
+				return null;
+			case MP_FALSE:
+				return false;
+			case MP_TRUE:
+				return true;
+			case MP_FLOAT:
+				return Float.intBitsToFloat(in.readInt());
+			case MP_DOUBLE:
+				return Double.longBitsToDouble(in.readLong());
+			case MP_UINT8:
+				return in.readUnsignedByte();
+			case MP_UINT16:
+				return in.readUnsignedShort();
+			case MP_UINT32:
+				return in.readInt() & MAX_32BIT;
+			case MP_UINT64: {
+				long v = in.readLong();
+				if (v >= 0) return v;
+				else {
+					byte[] bytes = new byte[8];
+					for (int i = 0; i < 8; i++)
+						bytes[i] = (byte)(v >>> (56 - 8 * i));
+					return new BigInteger(1, bytes);
+				}
+			}
+			case MP_INT8:
+				return (byte)in.readUnsignedByte();
+			case MP_INT16:
+				return (short)in.readUnsignedShort();
+			case MP_INT32:
+				return in.readInt();
+			case MP_INT64:
+				return in.readLong();
+			case MP_ARRAY16:
+				return unpackList(in.readUnsignedShort(), in, options, budget);
+			case MP_ARRAY32:
+				return unpackList(in.readInt(), in, options, budget);
+			case MP_MAP16:
+				return unpackMap(in.readUnsignedShort(), in, options, budget);
+			case MP_MAP32:
+				return unpackMap(in.readInt(), in, options, budget);
+			case MP_RAW16:
+				return unpackRaw(in.readUnsignedShort(), in, options, budget);
+			case MP_RAW32:
+				return unpackRaw(in.readInt(), in, options, budget);
+			case MP_STR8:
+				return unpackRaw(in.readUnsignedByte(), in, options, budget);
+			case MP_BIN8:
+				return unpackBinary(in.readUnsignedByte(), in, options, budget);
+			case MP_BIN16:
+				return unpackBinary(in.readUnsignedShort(), in, options, budget);
+			case MP_BIN32:
+				return unpackBinary(in.readInt(), in, options, budget);
+			case MP_FIXEXT1:
+				return unpackExtension(1, in, budget);
+			case MP_FIXEXT2:
+				return unpackExtension(2, in, budget);
+			case MP_FIXEXT4:
+				return unpackExtension(4, in, budget);
+			case MP_FIXEXT8:
+				return unpackExtension(8, in, budget);
+			case MP_FIXEXT16:
+				return unpackExtension(16, in, budget);
+			case MP_EXT8:
+				return unpackExtension(in.readUnsignedByte(), in, budget);
+			case MP_EXT16:
+				return unpackExtension(in.readUnsignedShort(), in, budget);
+			case MP_EXT32:
+				return unpackExtension(in.readInt(), in, budget);
+		}
+
+		if (value >= MP_NEGATIVE_FIXNUM_INT && value <= MP_NEGATIVE_FIXNUM_INT + MAX_5BIT) {
+			return (byte)value;
+		} else if (value >= MP_FIXARRAY_INT && value <= MP_FIXARRAY_INT + MAX_4BIT) {
+			return unpackList(value - MP_FIXARRAY_INT, in, options, budget);
+		} else if (value >= MP_FIXMAP_INT && value <= MP_FIXMAP_INT + MAX_4BIT) {
+			return unpackMap(value - MP_FIXMAP_INT, in, options, budget);
+		} else if (value >= MP_FIXRAW_INT && value <= MP_FIXRAW_INT + MAX_5BIT) {
+			return unpackRaw(value - MP_FIXRAW_INT, in, options, budget);
+		} else if (value <= MAX_7BIT) {//MP_FIXNUM - the value is value as an int
+			return value;
+		} else {
+			throw new InvalidMsgPackDataException("Input contains invalid type value");
+		}
+	}
+
+	protected static List<Object> unpackList(int size, BufferInput in, int options, Budget budget) throws InvalidMsgPackDataException {
+		options &= ~UNPACK_KEY;
+		if (size < 0) throw new InvalidMsgPackDataException("Array to unpack too large for Java (more than 2^31 elements)!");
+		// Every element takes at least one byte
+		in.require(size);
+		budget.enter(size);
+		List<Object> ret = new ArrayList<Object>(initialCapacity(size));
+		for (int i = 0; i < size; ++i) {
+			ret.add(unpack(in, options, budget));
+		}
+		budget.exit();
+		return ret;
+	}
+
+	protected static Map<Object, Object> unpackMap(int size, BufferInput in, int options, Budget budget) throws InvalidMsgPackDataException {
+		options &= ~UNPACK_KEY;
+		if (size < 0) throw new InvalidMsgPackDataException("Map to unpack too large for Java (more than 2^31 elements)!");
+		// Every entry takes at least two bytes
+		in.require(2L * size);
+		budget.enter(size);
+		Map<Object, Object> ret = new HashMap<Object, Object>(initialCapacity(size));
+		for (int i = 0; i < size; ++i) {
+			Object key = unpack(in, options | UNPACK_KEY, budget);
+			Object value = unpack(in, options, budget);
+			ret.put(key, value);
+		}
+		budget.exit();
+		return ret;
+	}
+
+	// Sizes come straight from the input, so don't trust them for more than
+	// a small initial allocation; containers grow as elements arrive.
+	private static int initialCapacity(int size) {
+		return Math.min(size, MAX_PREALLOCATE);
+	}
+
+	protected static Object unpackRaw(int size, BufferInput in, int options, Budget budget) throws InvalidMsgPackDataException {
+		if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+		in.require(size);
+		budget.chargeBytes(size);
+		int start = in.pos;
+		in.pos += size;
+
+		if ((options & UNPACK_RAW_AS_BYTE_BUFFER) != 0) {
+			// Zero-copy: hand out a read-only view of the input
+			return slice(in.buf, start, size);
+		} else if ((options & UNPACK_RAW_AS_STRING) != 0) {
+			if ((options & UNPACK_INTERN_STRINGS) != 0) {
+				StringInterner interner = StringInterner.get();
+				String s = (options & UNPACK_KEY) != 0 ? interner.intern(in.buf, start, size) : interner.lookup(in.buf, start, size);
+				if (s != null)
+					return s;
+			}
+			return decodeString(in.buf, start, size);
+		} else {
+			byte[] data = new byte[size];
+			copyBytes(in.buf, start, data);
+			return data;
+		}
+	}
+
+	protected static Object unpackBinary(int size, BufferInput in, int options, Budget budget) throws InvalidMsgPackDataException {
+		if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+		in.require(size);
+		budget.chargeBytes(size);
+		int start = in.pos;
+		in.pos += size;
+
+		// Binary data is never decoded as a string
+		if ((options & UNPACK_RAW_AS_BYTE_BUFFER) != 0)
+			return slice(in.buf, start, size);
+		byte[] data = new byte[size];
+		copyBytes(in.buf, start, data);
+		return data;
+	}
+
+	protected static Object unpackExtension(int size, BufferInput in, Budget budget) throws InvalidMsgPackDataException {
+		if (size < 0) throw new InvalidMsgPackDataException("Extension to unpack too large for Java (more than 2^31 bytes)!");
+		byte type = (byte)in.readUnsignedByte();
+		in.require(size);
+		budget.chargeBytes(size);
+		byte[] data = new byte[size];
+		copyBytes(in.buf, in.pos, data);
+		in.pos += size;
+		return makeExtension(type, data);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int start, int size) {
+		ByteBuffer slice = buf.duplicate();
+		slice.limit(start + size);
+		slice.position(start);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	private static void copyBytes(ByteBuffer buf, int start, byte[] dest) {
+		if (buf.hasArray()) {
+			System.arraycopy(buf.array(), buf.arrayOffset() + start, dest, 0, dest.length);
 		} else {
+			ByteBuffer src = buf.duplicate();
+			src.limit(start + dest.length);
+			src.position(start);
+			src.get(dest);
+		}
+	}
+
+	/**
+	 * Advances past the next value, including the contents of arrays and
+	 * maps, checking that it is well-formed but without decoding it.  The
+	 * value is charged against the budget exactly as unpacking it would
+	 * be.
+	 */
+	protected static void skip(BufferInput in, Budget budget) throws InvalidMsgPackDataException {
+		// Values still to skip in the current container, and, when there
+		// is a depth limit to enforce, in each of the enclosing ones
+		long pending = 1;
+		long[] outer = null;
+		int depth = 0;
+		for (;;) {
+			while (pending == 0) {
+				if (depth == 0)
+					return;
+				pending = outer[--depth];
+				budget.exit();
+			}
+			pending--;
+			long entries = -1;
+			boolean map = false;
+			int value = in.readUnsignedByte();
+			switch ((byte)value) {
+				case MP_NULL:
+				case MP_FALSE:
+				case MP_TRUE:
+					break;
+				case MP_UINT8:
+				case MP_INT8:
+					skipBytes(in, 1);
+					break;
+				case MP_UINT16:
+				case MP_INT16:
+					skipBytes(in, 2);
+					break;
+				case MP_FLOAT:
+				case MP_UINT32:
+				case MP_INT32:
+					skipBytes(in, 4);
+					break;
+				case MP_DOUBLE:
+				case MP_UINT64:
+				case MP_INT64:
+					skipBytes(in, 8);
+					break;
+				case MP_ARRAY16:
+					entries = in.readUnsignedShort();
+					break;
+				case MP_ARRAY32:
+					entries = in.readInt() & MAX_32BIT;
+					break;
+				case MP_MAP16:
+					entries = in.readUnsignedShort();
+					map = true;
+					break;
+				case MP_MAP32:
+					entries = in.readInt() & MAX_32BIT;
+					map = true;
+					break;
+				case MP_RAW16:
+					skipPayload(in, in.readUnsignedShort(), budget);
+					break;
+				case MP_RAW32:
+					skipPayload(in, in.readInt(), budget);
+					break;
+				case MP_STR8:
+				case MP_BIN8:
+					skipPayload(in, in.readUnsignedByte(), budget);
+					break;
+				case MP_BIN16:
+					skipPayload(in, in.readUnsignedShort(), budget);
+					break;
+				case MP_BIN32:
+					skipPayload(in, in.readInt(), budget);
+					break;
+				case MP_FIXEXT1:
+					skipExtension(in, 1, budget);
+					break;
+				case MP_FIXEXT2:
+					skipExtension(in, 2, budget);
+					break;
+				case MP_FIXEXT4:
+					skipExtension(in, 4, budget);
+					break;
+				case MP_FIXEXT8:
+					skipExtension(in, 8, budget);
+					break;
+				case MP_FIXEXT16:
+					skipExtension(in, 16, budget);
+					break;
+				case MP_EXT8:
+					skipExtension(in, in.readUnsignedByte(), budget);
+					break;
+				case MP_EXT16:
+					skipExtension(in, in.readUnsignedShort(), budget);
+					break;
+				case MP_EXT32:
+					skipExtension(in, in.readInt(), budget);
+					break;
+				default:
+					if (value >= MP_NEGATIVE_FIXNUM_INT && value <= MP_NEGATIVE_FIXNUM_INT + MAX_5BIT) {
+						// no payload
+					} else if (value >= MP_FIXARRAY_INT && value <= MP_FIXARRAY_INT + MAX_4BIT) {
+						entries = value - MP_FIXARRAY_INT;
+					} else if (value >= MP_FIXMAP_INT && value <= MP_FIXMAP_INT + MAX_4BIT) {
+						entries = value - MP_FIXMAP_INT;
+						map = true;
+					} else if (value >= MP_FIXRAW_INT && value <= MP_FIXRAW_INT + MAX_5BIT) {
+						skipPayload(in, value - MP_FIXRAW_INT, budget);
+					} else if (value <= MAX_7BIT) {
+						// MP_FIXNUM
+					} else {
+						throw new InvalidMsgPackDataException("Input contains invalid type value");
+					}
+			}
+
+			if (entries >= 0) {
+				long values = map ? 2 * entries : entries;
+				// Every value takes at least one byte
+				in.require(values);
+				budget.enter(entries);
+				if (!budget.isLimited()) {
+					budget.exit();
+					pending += values;
+				} else if (values == 0) {
+					budget.exit();
+				} else {
+					if (outer == null)
+						outer = new long[8];
+					else if (depth == outer.length)
+						outer = Arrays.copyOf(outer, depth * 2);
+					outer[depth++] = pending;
+					pending = values;
+				}
+			}
+		}
+	}
+
+	private static void skipPayload(BufferInput in, int size, Budget budget) throws InvalidMsgPackDataException {
+		if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+		in.require(size);
+		budget.chargeBytes(size);
+		in.pos += size;
+	}
+
+	private static void skipExtension(BufferInput in, int size, Budget budget) throws InvalidMsgPackDataException {
+		if (size < 0) throw new InvalidMsgPackDataException("Extension to unpack too large for Java (more than 2^31 bytes)!");
+		skipBytes(in, 1);
+		skipPayload(in, size, budget);
+	}
+
+	private static void skipBytes(BufferInput in, int count) throws InvalidMsgPackDataException {
+		in.require(count);
+		in.pos += count;
+	}
+
+	/**
+	 * An ext value of an application-defined type.
+	 */
+	public static class Extension {
+		public final byte type;
+		public final byte[] data;
+
+		public Extension(byte type, byte[] data) {
+			if (data == null)
+				throw new NullPointerException();
+			this.type = type;
+			this.data = data;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Extension))
+				return false;
+			Extension other = (Extension)o;
+			return type == other.type && Arrays.equals(data, other.data);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type + Arrays.hashCode(data);
+		}
+
+		@Override
+		public String toString() {
+			return "Extension(" + type + ", " + data.length + " bytes)";
+		}
+	}
+
+	/**
+	 * A value of the predefined timestamp extension type: seconds and
+	 * nanoseconds since the Unix epoch.
+	 */
+	public static class Timestamp {
+		public final long seconds;
+		public final int nanos;
+
+		public Timestamp(long seconds, int nanos) {
+			if (nanos < 0 || nanos > 999999999)
+				throw new IllegalArgumentException("nanos out of range");
+			this.seconds = seconds;
+			this.nanos = nanos;
+		}
+
+		public static Timestamp fromMillis(long millis) {
+			long seconds = millis / 1000;
+			int nanos = (int)(millis % 1000) * 1000000;
+			if (nanos < 0) {
+				seconds--;
+				nanos += 1000000000;
+			}
+			return new Timestamp(seconds, nanos);
+		}
+
+		public long toMillis() {
+			return seconds * 1000 + nanos / 1000000;
+		}
+
+		protected static Timestamp fromBytes(byte[] data) throws InvalidMsgPackDataException {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			try {
+				switch (data.length) {
+					case 4:
+						return new Timestamp(buf.getInt() & MAX_32BIT, 0);
+					case 8: {
+						long value = buf.getLong();
+						return new Timestamp(value & 0x3ffffffffL, (int)(value >>> 34));
+					}
+					case 12: {
+						int nanos = buf.getInt();
+						return new Timestamp(buf.getLong(), nanos);
+					}
+					default:
+						throw new InvalidMsgPackDataException("Invalid timestamp length " + data.length);
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new InvalidMsgPackDataException("Invalid timestamp", ex);
+			}
+		}
+
+		// Use the smallest encoding that can represent the value
+		protected Extension toExtension() {
+			ByteBuffer buf;
+			if ((seconds >>> 34) == 0) {
+				if (nanos == 0 && seconds <= MAX_32BIT) {
+					buf = ByteBuffer.allocate(4);
+					buf.putInt((int)seconds);
+				} else {
+					buf = ByteBuffer.allocate(8);
+					buf.putLong(((long)nanos << 34) | seconds);
+				}
+			} else {
+				buf = ByteBuffer.allocate(12);
+				buf.putInt(nanos);
+				buf.putLong(seconds);
+			}
+			return new Extension(EXT_TIMESTAMP, buf.array());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Timestamp))
+				return false;
+			Timestamp other = (Timestamp)o;
+			return seconds == other.seconds && nanos == other.nanos;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(seconds ^ (seconds >>> 32)) * 31 + nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Timestamp(" + seconds + "." + String.format("%09d", nanos) + ")";
+		}
+	}
+
+	/**
+	 * Token types returned by Reader.next().
+	 */
+	public enum Token {
+		NULL,
+		BOOLEAN,
+		INT,
+		FLOAT,
+		STRING,
+		RAW,
+		EXTENSION,
+		ARRAY_START,
+		MAP_START,
+		KEY,
+	}
+
+	/**
+	 * Pull-style reader that walks packed data one token at a time,
+	 * without building the HashMap/ArrayList tree that unpack() returns.
+	 *
+	 * next() returns the type of the next value and makes its contents
+	 * available through the typed getters.  For ARRAY_START and MAP_START
+	 * getSize() returns the number of elements (or key/value pairs); the
+	 * elements follow as ordinary tokens.  Raw values in map key position
+	 * are returned as KEY; other raw values are returned as STRING if the
+	 * UNPACK_RAW_AS_STRING option is given and RAW otherwise.  Values of
+	 * the bin types are always returned as RAW.  For EXTENSION tokens,
+	 * getExtensionType() returns the type and the raw getters return the
+	 * payload.
+	 *
+	 * The reader never modifies the buffer it is given.  Values returned
+	 * by getRaw() are views of that buffer.
+	 *
+	 * Given Limits, the reader charges everything it reads or skips
+	 * against them, as unpack() does, and fails as soon as the data
+	 * exceeds them.
+	 */
+	public static class Reader {
+		private BufferInput in;
+		private int start;
+		private final int options;
+		private final Limits limits;
+		private Budget budget;
+
+		// Enclosing containers: remaining values (two per map entry) and
+		// whether the container is a map
+		private long[] remaining = new long[8];
+		private boolean[] isMap = new boolean[8];
+		// Containers are left when their last value starts; these are
+		// the ones that really end with each container, and with the
+		// current value, for the depth limit
+		private int[] closing = new int[8];
+		private int depth;
+		private int pendingExits;
+
+		private Token token;
+		private boolean booleanValue;
+		private long longValue;
+		private BigInteger bigValue;
+		private double doubleValue;
+		private int rawStart;
+		private int rawSize;
+		private byte extensionType;
+		private int size;
+
+		public Reader(ByteBuffer buf, int options) {
+			this(buf, options, null);
+		}
+
+		/**
+		 * @param limits decoding limits, or null for none
+		 */
+		public Reader(ByteBuffer buf, int options, Limits limits) {
+			in = new BufferInput(buf);
+			start = in.pos;
+			this.options = options;
+			this.limits = limits;
+			budget = Budget.forLimits(limits);
+		}
+
+		/**
+		 * Rewinds to the start of the data, restoring the full limits.
+		 */
+		public void reset() {
+			in.pos = start;
+			depth = 0;
+			pendingExits = 0;
+			token = null;
+			if (limits != null)
+				budget.refill(limits);
+		}
+
+		/**
+		 * Starts over on new data, with the same options and limits.
+		 * Saves allocating a new reader for each of many messages.
+		 */
+		public void reset(ByteBuffer buf) {
+			in = new BufferInput(buf);
+			start = in.pos;
+			reset();
+		}
+
+		/**
+		 * Returns true if there is another value at the current level:
+		 * either inside the enclosing container or, at the top level,
+		 * before the end of the buffer.
+		 */
+		public boolean hasNext() {
+			if (depth > 0)
+				return remaining[depth - 1] > 0;
+			return in.pos < in.limit;
+		}
+
+		public Token next() throws InvalidMsgPackDataException {
+			boolean isKey = depth > 0 && isMap[depth - 1] && (remaining[depth - 1] & 1) == 0;
+			consumed();
+			Token ret = read(isKey);
+			exitClosed();
+			return ret;
+		}
+
+		private Token read(boolean isKey) throws InvalidMsgPackDataException {
+			int value = in.readUnsignedByte();
+			switch ((byte)value) {
+				case MP_NULL:
+					return token = Token.NULL;
+				case MP_FALSE:
+					booleanValue = false;
+					return token = Token.BOOLEAN;
+				case MP_TRUE:
+					booleanValue = true;
+					return token = Token.BOOLEAN;
+				case MP_FLOAT:
+					doubleValue = Float.intBitsToFloat(in.readInt());
+					return token = Token.FLOAT;
+				case MP_DOUBLE:
+					doubleValue = Double.longBitsToDouble(in.readLong());
+					return token = Token.FLOAT;
+				case MP_UINT8:
+					return integer(in.readUnsignedByte());
+				case MP_UINT16:
+					return integer(in.readUnsignedShort());
+				case MP_UINT32:
+					return integer(in.readInt() & MAX_32BIT);
+				case MP_UINT64: {
+					long v = in.readLong();
+					integer(v);
+					if (v < 0) {
+						byte[] bytes = new byte[8];
+						for (int i = 0; i < 8; i++)
+							bytes[i] = (byte)(v >>> (56 - 8 * i));
+						bigValue = new BigInteger(1, bytes);
+					}
+					return token;
+				}
+				case MP_INT8:
+					return integer((byte)in.readUnsignedByte());
+				case MP_INT16:
+					return integer((short)in.readUnsignedShort());
+				case MP_INT32:
+					return integer(in.readInt());
+				case MP_INT64:
+					return integer(in.readLong());
+				case MP_ARRAY16:
+					return container(in.readUnsignedShort(), false);
+				case MP_ARRAY32:
+					return container(in.readInt(), false);
+				case MP_MAP16:
+					return container(in.readUnsignedShort(), true);
+				case MP_MAP32:
+					return container(in.readInt(), true);
+				case MP_RAW16:
+					return raw(in.readUnsignedShort(), isKey);
+				case MP_RAW32:
+					return raw(in.readInt(), isKey);
+				case MP_STR8:
+					return raw(in.readUnsignedByte(), isKey);
+				case MP_BIN8:
+					raw(in.readUnsignedByte(), false);
+					return token = Token.RAW;
+				case MP_BIN16:
+					raw(in.readUnsignedShort(), false);
+					return token = Token.RAW;
+				case MP_BIN32:
+					raw(in.readInt(), false);
+					return token = Token.RAW;
+				case MP_FIXEXT1:
+					return extension(1);
+				case MP_FIXEXT2:
+					return extension(2);
+				case MP_FIXEXT4:
+					return extension(4);
+				case MP_FIXEXT8:
+					return extension(8);
+				case MP_FIXEXT16:
+					return extension(16);
+				case MP_EXT8:
+					return extension(in.readUnsignedByte());
+				case MP_EXT16:
+					return extension(in.readUnsignedShort());
+				case MP_EXT32:
+					return extension(in.readInt());
+			}
+
+			if (value >= MP_NEGATIVE_FIXNUM_INT && value <= MP_NEGATIVE_FIXNUM_INT + MAX_5BIT) {
+				return integer((byte)value);
+			} else if (value >= MP_FIXARRAY_INT && value <= MP_FIXARRAY_INT + MAX_4BIT) {
+				return container(value - MP_FIXARRAY_INT, false);
+			} else if (value >= MP_FIXMAP_INT && value <= MP_FIXMAP_INT + MAX_4BIT) {
+				return container(value - MP_FIXMAP_INT, true);
+			} else if (value >= MP_FIXRAW_INT && value <= MP_FIXRAW_INT + MAX_5BIT) {
+				return raw(value - MP_FIXRAW_INT, isKey);
+			} else if (value <= MAX_7BIT) {//MP_FIXNUM
+				return integer(value);
+			} else {
+				throw new InvalidMsgPackDataException("Input contains invalid type value");
+			}
+		}
+
+		/**
+		 * Skips the next value, including the contents of arrays and maps,
+		 * without decoding it.
+		 */
+		public void skipValue() throws InvalidMsgPackDataException {
+			consumed();
+			token = null;
+			skip(in, budget);
+			exitClosed();
+		}
+
+		public Token getToken() {
+			return token;
+		}
+
+		public boolean getBoolean() {
+			need(Token.BOOLEAN);
+			return booleanValue;
+		}
+
+		/**
+		 * @throws ArithmeticException if the value doesn't fit in a long
+		 */
+		public long getLong() {
+			need(Token.INT);
+			if (bigValue != null)
+				throw new ArithmeticException("Value too large for long");
+			return longValue;
+		}
+
+		/**
+		 * @throws ArithmeticException if the value doesn't fit in an int
+		 */
+		public int getInt() {
+			long value = getLong();
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+				throw new ArithmeticException("Value too large for int");
+			return (int)value;
+		}
+
+		public BigInteger getBigInteger() {
+			need(Token.INT);
+			return bigValue != null ? bigValue : BigInteger.valueOf(longValue);
+		}
+
+		/**
+		 * Returns FLOAT values, or INT values converted to double.
+		 */
+		public double getDouble() {
+			if (token == Token.INT)
+				return bigValue != null ? bigValue.doubleValue() : longValue;
+			need(Token.FLOAT);
+			return doubleValue;
+		}
+
+		/**
+		 * Decodes a STRING, RAW, or KEY value as UTF-8.  With the
+		 * UNPACK_INTERN_STRINGS option, registered strings and short
+		 * KEYs are returned as shared instances.
+		 */
+		public String getString() {
+			needRaw();
+			if ((options & UNPACK_INTERN_STRINGS) != 0) {
+				StringInterner interner = StringInterner.get();
+				String s = token == Token.KEY ? interner.intern(in.buf, rawStart, rawSize) : interner.lookup(in.buf, rawStart, rawSize);
+				if (s != null)
+					return s;
+			}
+			return decodeString(in.buf, rawStart, rawSize);
+		}
+
+		/**
+		 * As getString(), but returns the instance registered with
+		 * registerString() whatever the options, without allocating.
+		 * Values that were never registered are decoded afresh, so
+		 * they are not identical to any other string.
+		 */
+		public String getCanonicalString() {
+			needRaw();
+			String s = StringInterner.get().lookup(in.buf, rawStart, rawSize);
+			return s != null ? s : decodeString(in.buf, rawStart, rawSize);
+		}
+
+		public byte getExtensionType() {
+			need(Token.EXTENSION);
+			return extensionType;
+		}
+
+		/**
+		 * Returns the current EXTENSION value as a Timestamp if it has
+		 * the timestamp type, or as an Extension otherwise.
+		 */
+		public Object getExtension() throws InvalidMsgPackDataException {
+			need(Token.EXTENSION);
+			return makeExtension(extensionType, getBytes());
+		}
+
+		/**
+		 * Returns a STRING, RAW, or KEY value as a read-only view of the
+		 * input buffer.
+		 */
+		public ByteBuffer getRaw() {
+			needRaw();
+			return slice(in.buf, rawStart, rawSize);
+		}
+
+		/**
+		 * Returns a copy of a STRING, RAW, or KEY value.
+		 */
+		public byte[] getBytes() {
+			needRaw();
+			byte[] data = new byte[rawSize];
+			copyBytes(in.buf, rawStart, data);
 			return data;
 		}
+
+		/**
+		 * Returns true if the current STRING, RAW, or KEY value is the
+		 * UTF-8 encoding of the given string.  Does not allocate if the
+		 * string is ASCII.
+		 */
+		public boolean matches(String value) {
+			needRaw();
+			int length = value.length();
+			// Decoding never yields more chars than there are bytes, and
+			// yields exactly as many only for ASCII
+			if (length > rawSize)
+				return false;
+			if (length == rawSize) {
+				for (int i = 0; i < length; i++) {
+					char c = value.charAt(i);
+					if (c >= 0x80)
+						return getString().equals(value);
+					if (in.buf.get(rawStart + i) != c)
+						return false;
+				}
+				return true;
+			}
+			for (int i = 0; i < length; i++) {
+				if (value.charAt(i) >= 0x80)
+					return getString().equals(value);
+			}
+			return false;
+		}
+
+		/**
+		 * As matches(String), for a string already encoded as UTF-8.
+		 * Cheaper when the same string is matched again and again.
+		 */
+		public boolean matches(byte[] utf8) {
+			needRaw();
+			if (utf8.length != rawSize)
+				return false;
+			for (int i = 0; i < rawSize; i++) {
+				if (in.buf.get(rawStart + i) != utf8[i])
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the element count of an ARRAY_START token or the entry
+		 * count of a MAP_START token.
+		 */
+		public int getSize() {
+			if (token != Token.ARRAY_START && token != Token.MAP_START)
+				throw new IllegalStateException("Current token is " + token + ", not a container");
+			return size;
+		}
+
+		private void need(Token type) {
+			if (token != type)
+				throw new IllegalStateException("Current token is " + token + ", not " + type);
+		}
+
+		private void needRaw() {
+			if (token != Token.STRING && token != Token.RAW && token != Token.KEY &&
+					token != Token.EXTENSION)
+				throw new IllegalStateException("Current token is " + token + ", not a raw value");
+		}
+
+		// Account for one value in the enclosing container, and leave any
+		// containers that are now complete.
+		private void consumed() {
+			if (depth > 0)
+				remaining[depth - 1]--;
+			while (depth > 0 && remaining[depth - 1] == 0) {
+				depth--;
+				pendingExits += 1 + closing[depth];
+			}
+		}
+
+		// Called once the current value is complete, unless it is a
+		// container that still has values to come.
+		private void exitClosed() {
+			for (; pendingExits > 0; pendingExits--)
+				budget.exit();
+		}
+
+		private Token integer(long value) {
+			longValue = value;
+			bigValue = null;
+			return token = Token.INT;
+		}
+
+		private Token raw(int size, boolean isKey) throws InvalidMsgPackDataException {
+			if (size < 0) throw new InvalidMsgPackDataException("byte[] to unpack too large for Java (more than 2^31 elements)!");
+			in.require(size);
+			budget.chargeBytes(size);
+			rawStart = in.pos;
+			rawSize = size;
+			in.pos += size;
+			if (isKey)
+				return token = Token.KEY;
+			else if ((options & UNPACK_RAW_AS_STRING) != 0)
+				return token = Token.STRING;
+			else
+				return token = Token.RAW;
+		}
+
+		private Token extension(int size) throws InvalidMsgPackDataException {
+			if (size < 0) throw new InvalidMsgPackDataException("Extension to unpack too large for Java (more than 2^31 bytes)!");
+			extensionType = (byte)in.readUnsignedByte();
+			raw(size, false);
+			return token = Token.EXTENSION;
+		}
+
+		private Token container(int size, boolean map) throws InvalidMsgPackDataException {
+			if (size < 0) throw new InvalidMsgPackDataException("Container to unpack too large for Java (more than 2^31 elements)!");
+			// Every value takes at least one byte
+			in.require(map ? 2L * size : size);
+			budget.enter(size);
+			this.size = size;
+			if (size == 0) {
+				budget.exit();
+			} else {
+				if (depth == remaining.length) {
+					remaining = Arrays.copyOf(remaining, depth * 2);
+					isMap = Arrays.copyOf(isMap, depth * 2);
+					closing = Arrays.copyOf(closing, depth * 2);
+				}
+				remaining[depth] = map ? 2L * size : size;
+				isMap[depth] = map;
+				// Whatever was to end with this value now ends with
+				// this container
+				closing[depth] = pendingExits;
+				pendingExits = 0;
+				depth++;
+			}
+			return token = map ? Token.MAP_START : Token.ARRAY_START;
+		}
 	}
 }
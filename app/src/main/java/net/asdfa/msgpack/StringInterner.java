@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2016 Carnegie Mellon University
+ * Copyright (c) 2012 Jonathan Stephens
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.asdfa.msgpack;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Canonical String instances for decoded data, so that frequently
+ * repeated strings decode to the same object every time.  Lookups that
+ * hit do not allocate.
+ *
+ * Two tables are kept.  Strings registered by the application (message
+ * types, enum-like values) are pinned for the life of the process and
+ * are returned for any field.  Short map keys are also cached in a small
+ * direct-mapped table with a short probe sequence; on a miss the new
+ * entry replaces whatever was in its slot, so data from the peer can
+ * never grow it.  Nothing is String.intern()ed.
+ *
+ * Entries are immutable, so concurrent readers need no locking.
+ */
+final class StringInterner {
+	static final int MAX_LENGTH = 32;
+
+	private static final int TABLE_SIZE = 256;
+	private static final int PROBES = 4;
+	private static final int KNOWN_SIZE = 128;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final class Entry {
+		final byte[] bytes;
+		final String value;
+
+		Entry(byte[] bytes, String value) {
+			this.bytes = bytes;
+			this.value = value;
+		}
+
+		boolean matches(byte[] data, int start, int size) {
+			if (bytes.length != size)
+				return false;
+			for (int i = 0; i < size; i++)
+				if (bytes[i] != data[start + i])
+					return false;
+			return true;
+		}
+	}
+
+	private static final StringInterner shared = new StringInterner();
+
+	private final Entry[] table = new Entry[TABLE_SIZE];
+	// Registered strings, linearly probed.  Kept at most half full so
+	// every probe sequence ends at an empty slot.
+	private final Entry[] known = new Entry[KNOWN_SIZE];
+	private int knownCount;
+	// Written after each registration, so readers that check it first
+	// see the new entry
+	private volatile int maxKnownLength = -1;
+
+	static StringInterner get() {
+		return shared;
+	}
+
+	/**
+	 * Registers s as the canonical instance of its value and returns the
+	 * instance decoders will hand out from now on: s itself, or an equal
+	 * string registered earlier.  Registered strings may be of any length
+	 * and are never evicted, so only register values from a small fixed
+	 * set.
+	 */
+	synchronized String register(String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		int slot = hash(bytes, 0, bytes.length) & (KNOWN_SIZE - 1);
+		for (Entry entry; (entry = known[slot]) != null; slot = (slot + 1) & (KNOWN_SIZE - 1))
+			if (entry.matches(bytes, 0, bytes.length))
+				return entry.value;
+		if (knownCount >= KNOWN_SIZE / 2)
+			throw new IllegalStateException("Too many registered strings");
+		known[slot] = new Entry(bytes, s);
+		knownCount++;
+		maxKnownLength = Math.max(maxKnownLength, bytes.length);
+		return s;
+	}
+
+	/**
+	 * Returns the registered string for size bytes of data starting at
+	 * start, or null if that value was never registered.
+	 */
+	String lookup(byte[] data, int start, int size) {
+		if (size > maxKnownLength)
+			return null;
+		return lookup(data, start, size, hash(data, start, size));
+	}
+
+	/**
+	 * Returns the shared instance for a map key of size bytes of data
+	 * starting at start: the registered string if there is one, else the
+	 * cached one, adding it on a miss.  Returns null for unregistered
+	 * keys longer than MAX_LENGTH, which the caller must decode itself.
+	 */
+	String intern(byte[] data, int start, int size) {
+		boolean registrable = size <= maxKnownLength;
+		if (!registrable && size > MAX_LENGTH)
+			return null;
+		int hash = hash(data, start, size);
+		if (registrable) {
+			String value = lookup(data, start, size, hash);
+			if (value != null)
+				return value;
+		}
+		if (size > MAX_LENGTH)
+			return null;
+
+		for (int probe = 0; probe < PROBES; probe++) {
+			Entry entry = table[(hash + probe) & (TABLE_SIZE - 1)];
+			if (entry != null && entry.matches(data, start, size))
+				return entry.value;
+		}
+
+		byte[] bytes = Arrays.copyOfRange(data, start, start + size);
+		Entry entry = new Entry(bytes, new String(bytes, UTF8));
+		insert(hash, entry);
+		return entry.value;
+	}
+
+	// As above, for buffer data with absolute index start.  Direct
+	// buffers are copied out first.
+	String lookup(ByteBuffer buf, int start, int size) {
+		if (buf.hasArray())
+			return lookup(buf.array(), buf.arrayOffset() + start, size);
+		if (size > maxKnownLength)
+			return null;
+		return lookup(copy(buf, start, size), 0, size);
+	}
+
+	String intern(ByteBuffer buf, int start, int size) {
+		if (buf.hasArray())
+			return intern(buf.array(), buf.arrayOffset() + start, size);
+		if (size > MAX_LENGTH && size > maxKnownLength)
+			return null;
+		return intern(copy(buf, start, size), 0, size);
+	}
+
+	private String lookup(byte[] data, int start, int size, int hash) {
+		for (int slot = hash & (KNOWN_SIZE - 1); ; slot = (slot + 1) & (KNOWN_SIZE - 1)) {
+			Entry entry = known[slot];
+			if (entry == null)
+				return null;
+			if (entry.matches(data, start, size))
+				return entry.value;
+		}
+	}
+
+	private void insert(int hash, Entry entry) {
+		for (int probe = 0; probe < PROBES; probe++) {
+			int slot = (hash + probe) & (TABLE_SIZE - 1);
+			if (table[slot] == null) {
+				table[slot] = entry;
+				return;
+			}
+		}
+		table[hash & (TABLE_SIZE - 1)] = entry;
+	}
+
+	private static int hash(byte[] data, int start, int size) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < size; i++)
+			hash = (hash ^ (data[start + i] & 0xff)) * 0x01000193;
+		return hash;
+	}
+
+	private static byte[] copy(ByteBuffer buf, int start, int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++)
+			bytes[i] = buf.get(start + i);
+		return bytes;
+	}
+}
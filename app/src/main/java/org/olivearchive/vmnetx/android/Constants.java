@@ -40,7 +40,8 @@ public class Constants {
     public static final int PROTOCOL_DISCONNECTED = 103;
 
     // Client protocol events
-    // ARG_VM_STATE, ARG_VM_NAME, ARG_MAX_MOUSE_RATE
+    // ARG_VM_STATE, ARG_VM_NAME, ARG_MAX_MOUSE_RATE,
+    // ARG_SERVER_TIMEOUT_MIN, ARG_SERVER_TIMEOUT_MAX
     public static final int CLIENT_PROTOCOL_AUTH_OK = 201;
     // ARG_ERROR
     public static final int CLIENT_PROTOCOL_AUTH_FAILED = 202;
@@ -58,7 +59,7 @@ public class Constants {
     public static final int CLIENT_PROTOCOL_VM_STOPPED = 209;
     // no arguments
     public static final int CLIENT_PROTOCOL_VM_DESTROYED = 210;
-    // no arguments
+    // ARG_SEQUENCE, ARG_RTT
     public static final int CLIENT_PROTOCOL_PONG = 211;
 
     // Arguments
@@ -78,6 +79,10 @@ public class Constants {
     public static final String ARG_SERVER_TIMEOUT_MIN = "server-timeout-min";
     // int
     public static final String ARG_SERVER_TIMEOUT_MAX = "server-timeout-max";
+    // int
+    public static final String ARG_SEQUENCE = "sequence";
+    // long, nanoseconds
+    public static final String ARG_RTT = "rtt";
 
     // VM states
     public static final int VM_STATE_UNKNOWN = 0;
@@ -36,9 +36,13 @@ import java.text.NumberFormat;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.os.Bundle;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.Message;
 import android.text.InputType;
@@ -55,23 +59,46 @@ import android.widget.Toast;
 
 import org.olivearchive.vmnetx.android.input.RemoteKeyboard;
 import org.olivearchive.vmnetx.android.input.RemotePointer;
+import org.olivearchive.vmnetx.android.protocol.Backoff;
 import org.olivearchive.vmnetx.android.protocol.ClientProtocolEndpoint;
+import org.olivearchive.vmnetx.android.protocol.Connector;
 import org.olivearchive.vmnetx.android.protocol.ControlConnectionProcessor;
+import org.olivearchive.vmnetx.android.protocol.EventChannel;
+import org.olivearchive.vmnetx.android.protocol.KeepaliveSchedule;
+import org.olivearchive.vmnetx.android.protocol.LatencyStats;
+import org.olivearchive.vmnetx.android.protocol.ProtocolListener;
+import org.olivearchive.vmnetx.android.protocol.SendFuture;
+import org.olivearchive.vmnetx.android.protocol.TransportMetrics;
+import org.olivearchive.vmnetx.android.protocol.ViewerPool;
 
 public class RemoteCanvas extends ImageView {
     private final static String TAG = "RemoteCanvas";
     
+    // How often transport metrics go to the log
+    private static final int METRICS_LOG_INTERVAL = 60000;
+    // Bounds on the delay before reconnecting
+    private static final int RECONNECT_BASE_MS = 250;
+    private static final int RECONNECT_CAP_MS = 8000;
+
     // Connection parameters
     private ConnectionInfo connection;
 
+    // Opens the control and viewer sockets for this session
+    private Connector connector;
+    // Viewer sockets for SPICE channels, connected ahead of time
+    private ViewerPool viewerPool;
+
     // VMNetX control connection
     private ControlConnectionProcessor controlConn;
     private ClientProtocolEndpoint endpoint;
+    private EventChannel events;
     private String vmName = null;
     private int vmState = Constants.VM_STATE_UNKNOWN;
     
     // SPICE protocol connection
     private SpiceCommunicator spice = null;
+    // Sets up the first one while the control connection authenticates
+    private SpiceWarmup spiceWarmup = null;
     
     private boolean maintainConnection = true;
     
@@ -91,6 +118,57 @@ public class RemoteCanvas extends ImageView {
     private final float displayDensity;
     
     private boolean spiceUpdateReceived = false;
+
+    // Resuming after a lost connection
+    private final Backoff controlBackoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_CAP_MS);
+    private final Backoff spiceBackoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_CAP_MS);
+    private boolean controlReconnectPending = false;
+    private boolean spiceReconnectPending = false;
+    private boolean networkReceiverRegistered = false;
+
+    private final Runnable controlReconnect = new Runnable() {
+        @Override
+        public void run() {
+            controlReconnectPending = false;
+            startControlConnection();
+        }
+    };
+
+    private final Runnable spiceReconnect = new Runnable() {
+        @Override
+        public void run() {
+            spiceReconnectPending = false;
+            startSpiceConnection();
+        }
+    };
+
+    // A new network is unlikely to need the backoff, and may make the old
+    // connections unusable, so act on it at once
+    private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast() || connector == null)
+                return;
+            ConnectivityManager cm = (ConnectivityManager)
+                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            if (info == null || !info.isConnected())
+                return;
+            Log.d(TAG, "Network changed to " + info.getTypeName());
+            connector.networkChanged();
+            viewerPool.discardReady();
+            if (controlReconnectPending) {
+                handler.removeCallbacks(controlReconnect);
+                controlReconnect.run();
+            } else {
+                pinger.probe();
+            }
+            if (spiceReconnectPending) {
+                handler.removeCallbacks(spiceReconnect);
+                spiceReconnect.run();
+            }
+        }
+    };
     
     /**
      * Constructor used by the inflation apparatus
@@ -117,6 +195,7 @@ public class RemoteCanvas extends ImageView {
             final Runnable updateActivity) {
         this.updateActivity = updateActivity;
         this.connection = connection;
+        connector = new Connector(connection.getAddress(), connection.getPort());
 
         // Startup the connection thread with a progress dialog
         pd = new ProgressDialog(getContext());
@@ -136,16 +215,34 @@ public class RemoteCanvas extends ImageView {
             }
         });
         pd.show();
-        
+
+        getContext().registerReceiver(networkReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        networkReceiverRegistered = true;
+
         startControlConnection();
     }
 
 
     private void startControlConnection() {
         try {
-            controlConn = new ControlConnectionProcessor(connection.getAddress(), connection.getPort());
-            endpoint = new ClientProtocolEndpoint(controlConn, handler);
-            new Thread(controlConn).start();
+            if (viewerPool == null)
+                viewerPool = new ViewerPool(connector, connection.getToken());
+            if (spice == null && spiceWarmup == null) {
+                spiceWarmup = new SpiceWarmup();
+                new Thread(spiceWarmup, "SPICE warm-up").start();
+            }
+            controlConn = new ControlConnectionProcessor(connector);
+            // Events from the last connection's endpoint that haven't
+            // been delivered yet are stale now
+            if (events != null)
+                events.close();
+            // Moves the endpoint's events from the reactor thread to the
+            // UI thread
+            events = new EventChannel(handler, protocolListener);
+            endpoint = new ClientProtocolEndpoint(controlConn, events);
+            controlConn.start();
+            TransportMetrics.startLogging(METRICS_LOG_INTERVAL);
         } catch (IOException e) {
             Log.e(TAG, "Couldn't create ControlConnectionProcessor", e);
             showFatalMessageAndQuit(getContext().getString(R.string.error_connection_failed));
@@ -153,15 +250,90 @@ public class RemoteCanvas extends ImageView {
     }
 
 
+    /**
+     * Loads the SPICE and GStreamer libraries, initializes GStreamer,
+     * starts the GLib main loop and creates a SPICE context, all off the
+     * UI thread.  None of it depends on the network, so it can overlap
+     * the control handshake instead of following vm-started.
+     */
+    private class SpiceWarmup implements Runnable {
+        private SpiceCommunicator result;
+        private boolean done = false;
+        private boolean abandoned = false;
+
+        @Override
+        public void run() {
+            SpiceCommunicator spice = null;
+            try {
+                spice = new SpiceCommunicator(getContext(), RemoteCanvas.this, handler, connection, viewerPool);
+            } catch (Throwable e) {
+                // startSpiceConnection() will try again and report it
+                Log.e(TAG, "SPICE warm-up failed", e);
+            }
+            boolean discard;
+            synchronized (this) {
+                result = spice;
+                done = true;
+                discard = abandoned;
+                notifyAll();
+            }
+            if (discard && spice != null)
+                spice.disconnect();
+        }
+
+        // Waits for the warm-up to finish.  Returns null if it failed.
+        synchronized SpiceCommunicator take() {
+            try {
+                while (!done)
+                    wait();
+            } catch (InterruptedException e) {
+                abandon();
+                return null;
+            }
+            SpiceCommunicator spice = result;
+            result = null;
+            return spice;
+        }
+
+        // Releases the unused context, now or when it's ready.
+        void abandon() {
+            SpiceCommunicator spice;
+            synchronized (this) {
+                abandoned = true;
+                spice = result;
+                result = null;
+            }
+            if (spice != null)
+                spice.disconnect();
+        }
+    }
+
     /**
      * Starts a SPICE connection using libspice.
      */
     private void startSpiceConnection() {
         try {
-            spice = new SpiceCommunicator(getContext(), this, handler, connection);
-            viewport = new Viewport(spice, this);
-            pointer = new RemotePointer(spice, this);
-            keyboard = new RemoteKeyboard(spice);
+            SpiceCommunicator prepared = null;
+            if (spiceWarmup != null) {
+                // Usually finished long ago
+                prepared = spiceWarmup.take();
+                spiceWarmup = null;
+            }
+            if (prepared != null)
+                spice = prepared;
+            else
+                spice = new SpiceCommunicator(getContext(), this, handler, connection, viewerPool);
+            if (viewport == null) {
+                viewport = new Viewport(spice, this);
+                pointer = new RemotePointer(spice, this);
+                keyboard = new RemoteKeyboard(spice);
+            } else {
+                // Resuming: keep the last frame on screen and the input
+                // state as it was
+                viewport.setSpice(spice);
+                pointer.setSpice(spice);
+                keyboard.setSpice(spice);
+            }
             spice.connect();
         } catch (Throwable e) {
             if (maintainConnection) {
@@ -243,7 +415,7 @@ public class RemoteCanvas extends ImageView {
     }
     
     public void restartVM() {
-        endpoint.sendStopVM();
+        sent(endpoint.sendStopVM());
         // VM_STATE_STOPPED handler will restart it
     }
     
@@ -261,6 +433,10 @@ public class RemoteCanvas extends ImageView {
         // Close the SPICE connection.
         if (spice != null)
             spice.disconnect();
+        if (spiceWarmup != null)
+            spiceWarmup.abandon();
+        if (viewerPool != null)
+            viewerPool.close();
         // Close the control connection.
         if (controlConn != null) {
             try {
@@ -280,13 +456,25 @@ public class RemoteCanvas extends ImageView {
         Log.v(TAG, "Cleaning up resources");
         
         handler.removeCallbacksAndMessages(null);
+        pinger.stop();
+        if (networkReceiverRegistered) {
+            getContext().unregisterReceiver(networkReceiver);
+            networkReceiverRegistered = false;
+        }
+        if (events != null)
+            events.close();
+        TransportMetrics.stopLogging();
 
         updateActivity   = null;
         connection       = null;
+        connector        = null;
+        viewerPool       = null;
         screenMessage    = null;
         viewport         = null;
         spice            = null;
+        spiceWarmup      = null;
         endpoint         = null;
+        events           = null;
         controlConn      = null;
     }
     
@@ -423,58 +611,93 @@ public class RemoteCanvas extends ImageView {
         switch (wanted) {
         case Constants.VM_STATE_RUNNING:
             if (vmState == Constants.VM_STATE_STOPPED) {
-                endpoint.sendStartVM();
-                vmState = Constants.VM_STATE_STARTING;
+                if (sent(endpoint.sendStartVM()))
+                    vmState = Constants.VM_STATE_STARTING;
             }
             break;
 
         case Constants.VM_STATE_STOPPED:
             if (vmState == Constants.VM_STATE_STARTING || vmState == Constants.VM_STATE_RUNNING) {
-                endpoint.sendStopVM();
-                vmState = Constants.VM_STATE_STOPPING;
+                if (sent(endpoint.sendStopVM()))
+                    vmState = Constants.VM_STATE_STOPPING;
             }
             break;
 
         case Constants.VM_STATE_DESTROYED:
             if (vmState != Constants.VM_STATE_DESTROYED) {
-                endpoint.sendDestroyVM();
-                vmState = Constants.VM_STATE_DESTROYED;
+                if (sent(endpoint.sendDestroyVM()))
+                    vmState = Constants.VM_STATE_DESTROYED;
             }
             break;
         }
     }
 
+    // The control connection refuses commands when too many are already
+    // waiting to go out.  Returns false, and tells the user, if this one
+    // was refused.
+    private boolean sent(SendFuture future) {
+        if (future.isFailed()) {
+            displayShortToastMessage(R.string.error_link_congested);
+            return false;
+        }
+        return true;
+    }
+
 
     private class PingerRunnable implements Runnable {
-        private static final int INTERVAL = 3000;
-        private static final int COUNT = 3;
+        // Log latency after this many pongs
+        private static final int LOG_INTERVAL = 20;
 
+        private KeepaliveSchedule keepalive;
         private int outstanding = 0;
         private long lastAlive = System.nanoTime();
+        private int pongs = 0;
 
-        public void start() {
+        // Timeouts are from auth-ok
+        public void start(int serverTimeoutMin, int serverTimeoutMax) {
             stop();
+            keepalive = new KeepaliveSchedule(serverTimeoutMin, serverTimeoutMax);
+            Log.d(TAG, "Keepalive " + keepalive);
             lastAlive = System.nanoTime();
             schedule();
         }
 
         public void stop() {
             handler.removeCallbacks(this);
+            keepalive = null;
             outstanding = 0;
         }
 
-        public void pong() {
+        // Sends an extra ping now, to find out sooner whether the link
+        // still works.  It doesn't count as a miss if the last ping is
+        // still unanswered, and the regular schedule carries on.
+        public void probe() {
+            if (keepalive == null)
+                return;
+            endpoint.sendPing();
+        }
+
+        public void pong(int sequence, long rttNanos) {
             outstanding = 0;
             lastAlive = System.nanoTime();
+            if (keepalive != null)
+                keepalive.pong(rttNanos, latency.getSmoothedRtt(), latency.getJitter());
+            latency.record(sequence, rttNanos);
+            if (++pongs % LOG_INTERVAL == 0) {
+                Log.d(TAG, "Control latency: " + latency + ", keepalive " + keepalive);
+                Log.d(TAG, "Control handlers: " + endpoint.getHandlerStats());
+            }
         }
 
         private void schedule() {
-            handler.postDelayed(this, INTERVAL);
+            handler.postDelayed(this, keepalive.getInterval());
         }
 
         @Override
         public void run() {
-            if (outstanding < COUNT) {
+            if (outstanding > 0)
+                keepalive.missed();
+            if (outstanding < keepalive.getLossThreshold()) {
                 endpoint.sendPing();
                 outstanding += 1;
                 schedule();
@@ -489,25 +712,24 @@ public class RemoteCanvas extends ImageView {
         }
     };
     private final PingerRunnable pinger = new PingerRunnable();
+    // Recorded on the UI thread
+    private final LatencyStats latency = new LatencyStats();
+
+    // Control connection round-trip times for this session
+    public LatencyStats getLatency() {
+        return latency;
+    }
 
 
-    /** 
-     * Handler for connection events.
+    /**
+     * Handler for SPICE connection events.
      */
     private final Handler handler = new Handler() {
-        private int serverTimeout;
-
-        private void showProtocolErrorAndQuit(String error) {
-            showFatalMessageAndQuit(getContext().getString(R.string.error_protocol) + " " + error);
-        }
-
         @Override
         public void handleMessage(Message msg) {
-            Bundle args = msg.getData();
-            String error;
-
             switch (msg.what) {
             case Constants.SPICE_CONNECT_SUCCESS:
+                spiceBackoff.reset();
                 if (pd != null && pd.isShowing()) {
                     pd.dismiss();
                 }
@@ -515,131 +737,155 @@ public class RemoteCanvas extends ImageView {
 
             case Constants.SPICE_CONNECT_FAILURE:
                 // Data connection failed; retry
-                if (maintainConnection) {
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            startSpiceConnection();
-                        }
-                    }, 1000);
+                if (maintainConnection && !spiceReconnectPending) {
+                    // Have sockets ready by the time we reconnect
+                    viewerPool.warm();
+                    spiceReconnectPending = true;
+                    handler.postDelayed(spiceReconnect, spiceBackoff.next());
                 }
                 break;
 
-            case Constants.PROTOCOL_CONNECTED:
-                Log.d(TAG, "connected");
-                endpoint.sendAuthenticate(connection.getToken());
+            default:
+                Log.w(TAG, "Handler received unknown message " + Integer.toString(msg.what));
                 break;
+            }
+        }
+    };
 
-            case Constants.PROTOCOL_ERROR:
-                error = args.getString(Constants.ARG_ERROR);
-                Log.d(TAG, "error " + error);
-                showProtocolErrorAndQuit(error);
-                break;
 
-            case Constants.PROTOCOL_DISCONNECTED:
-                Log.d(TAG, "disconnected");
-                vmState = Constants.VM_STATE_UNKNOWN;
-                pinger.stop();
-                if (maintainConnection) {
-                    if (serverTimeout == 0 ||
-                            pinger.getSecondsSinceAlive() <= serverTimeout) {
-                        handler.postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                startControlConnection();
-                            }
-                        }, 1000);
-                    } else {
-                        showFatalMessageAndQuit(getContext().getString(R.string.error_connection_failed));
-                    }
-                }
-                break;
+    /**
+     * Listener for control connection events, delivered on the UI thread
+     * through an EventChannel.
+     */
+    private final ProtocolListener protocolListener = new ProtocolListener() {
+        private int serverTimeout;
+        // For the startup trace
+        private long authOkAt;
 
-            case Constants.CLIENT_PROTOCOL_AUTH_OK:
-                vmName = args.getString(Constants.ARG_VM_NAME);
-                vmState = args.getInt(Constants.ARG_VM_STATE);
-                int maxMouseRate = args.getInt(Constants.ARG_MAX_MOUSE_RATE);
-                int serverTimeoutMin = args.getInt(Constants.ARG_SERVER_TIMEOUT_MIN);
-                serverTimeout = args.getInt(Constants.ARG_SERVER_TIMEOUT_MAX);
-                Log.d(TAG, "auth ok " + vmName + " " + Integer.toString(vmState) + " " + Integer.toString(maxMouseRate) + " " + Integer.toString(serverTimeoutMin) + " " + Integer.toString(serverTimeout));
-
-                // Start pinging
-                pinger.start();
-
-                // Update window title
-                post(updateActivity);
-
-                // If the VM is in a stable state, synthesize a state transition.
-                switch (vmState) {
-                case Constants.VM_STATE_RUNNING:
-                    Bundle bundle = new Bundle();
-                    bundle.putBoolean(Constants.ARG_CHECK_DISPLAY, false);
-                    Message message = handler.obtainMessage(Constants.CLIENT_PROTOCOL_VM_STARTED);
-                    message.setData(bundle);
-                    handler.sendMessage(message);
-                    break;
-                case Constants.VM_STATE_STOPPED:
-                    handler.sendEmptyMessage(Constants.CLIENT_PROTOCOL_VM_STOPPED);
-                    break;
-                }
-                break;
+        private void showProtocolErrorAndQuit(String error) {
+            showFatalMessageAndQuit(getContext().getString(R.string.error_protocol) + " " + error);
+        }
 
-            case Constants.CLIENT_PROTOCOL_AUTH_FAILED:
-                error = args.getString(Constants.ARG_ERROR);
-                Log.d(TAG, "auth failed " + error);
-                showProtocolErrorAndQuit(error);
-                break;
+        @Override
+        public void onConnected() {
+            Log.d(TAG, "connected");
+            latency.newConnection();
+            endpoint.sendAuthenticate(connection.getToken());
+        }
+
+        @Override
+        public void onError(String error) {
+            Log.d(TAG, "error " + error);
+            showProtocolErrorAndQuit(error);
+        }
 
-            case Constants.CLIENT_PROTOCOL_STARTUP_PROGRESS:
-                double progress = args.getDouble(Constants.ARG_PROGRESS);
-                if (pd.isIndeterminate() && progress > 0) {
-                    pd.setIndeterminate(false);
-                    pd.setProgressPercentFormat(NumberFormat.getPercentInstance());
+        @Override
+        public void onDisconnected() {
+            Log.d(TAG, "disconnected");
+            vmState = Constants.VM_STATE_UNKNOWN;
+            pinger.stop();
+            if (maintainConnection) {
+                if (serverTimeout == 0 ||
+                        pinger.getSecondsSinceAlive() <= serverTimeout) {
+                    controlReconnectPending = true;
+                    handler.postDelayed(controlReconnect, controlBackoff.next());
+                } else {
+                    showFatalMessageAndQuit(getContext().getString(R.string.error_connection_failed));
                 }
-                pd.setProgress((int) (progress * pd.getMax()));
-                break;
+            }
+        }
 
-            case Constants.CLIENT_PROTOCOL_STARTUP_REJECTED_MEMORY:
-                Log.d(TAG, "rejected memory");
+        @Override
+        public void onAuthOk(int state, String name, int maxMouseRate,
+                int serverTimeoutMin, int serverTimeoutMax) {
+            authOkAt = StartupTrace.now();
+            vmName = name;
+            vmState = state;
+            serverTimeout = serverTimeoutMax;
+            controlBackoff.reset();
+            Log.d(TAG, "auth ok " + vmName + " " + Integer.toString(vmState) + " " + Integer.toString(maxMouseRate) + " " + Integer.toString(serverTimeoutMin) + " " + Integer.toString(serverTimeout));
+
+            // Start pinging
+            pinger.start(serverTimeoutMin, serverTimeoutMax);
+
+            // Update window title
+            post(updateActivity);
+
+            // If the VM is in a stable state, synthesize a state transition.
+            switch (vmState) {
+            case Constants.VM_STATE_RUNNING:
+                onVmStarted(false);
                 break;
-
-            case Constants.CLIENT_PROTOCOL_STARTUP_FAILED:
-                error = args.getString(Constants.ARG_ERROR);
-                Log.d(TAG, "startup failed " + error);
-                showProtocolErrorAndQuit(error);
+            case Constants.VM_STATE_STOPPED:
+                onVmStopped();
                 break;
+            }
+        }
 
-            case Constants.CLIENT_PROTOCOL_VM_STARTED:
-                boolean checkDisplay = args.getBoolean(Constants.ARG_CHECK_DISPLAY);
-                Log.d(TAG, "VM started, check: " + Boolean.toString(checkDisplay));
-                vmState = Constants.VM_STATE_RUNNING;
-                if (spice == null)
-                    startSpiceConnection();
-                break;
+        @Override
+        public void onAuthFailed(String error) {
+            Log.d(TAG, "auth failed " + error);
+            showProtocolErrorAndQuit(error);
+        }
 
-            case Constants.CLIENT_PROTOCOL_VM_STOPPED:
-                Log.d(TAG, "VM stopped");
-                vmState = Constants.VM_STATE_STOPPED;
-                wantVMState(Constants.VM_STATE_RUNNING);
-                break;
+        @Override
+        public void onAttachingViewer() {
+            Log.w(TAG, "Unexpected attaching-viewer on control connection");
+        }
 
-            case Constants.CLIENT_PROTOCOL_VM_DESTROYED:
-                Log.d(TAG, "VM destroyed");
-                vmState = Constants.VM_STATE_DESTROYED;
-                if (maintainConnection) {
-                    showFatalMessageAndQuit(getContext().getString(R.string.error_vm_terminated));
-                }
-                break;
+        @Override
+        public void onStartupProgress(double progress) {
+            if (pd.isIndeterminate() && progress > 0) {
+                pd.setIndeterminate(false);
+                pd.setProgressPercentFormat(NumberFormat.getPercentInstance());
+            }
+            pd.setProgress((int) (progress * pd.getMax()));
+        }
 
-            case Constants.CLIENT_PROTOCOL_PONG:
-                //Log.d(TAG, "pong!");
-                pinger.pong();
-                break;
+        @Override
+        public void onStartupRejectedMemory() {
+            Log.d(TAG, "rejected memory");
+        }
 
-            default:
-                Log.w(TAG, "Handler received unknown message " + Integer.toString(msg.what));
-                break;
+        @Override
+        public void onStartupFailed(String error) {
+            Log.d(TAG, "startup failed " + error);
+            showProtocolErrorAndQuit(error);
+        }
+
+        @Override
+        public void onVmStarted(boolean checkDisplay) {
+            Log.d(TAG, "VM started, check: " + Boolean.toString(checkDisplay));
+            vmState = Constants.VM_STATE_RUNNING;
+            StartupTrace.complete("auth-ok to vm-started", "vm", authOkAt);
+            if (spice == null) {
+                // Start the viewer handshakes for the SPICE channels
+                // we're about to need
+                viewerPool.warm();
+                startSpiceConnection();
+            }
+        }
+
+        @Override
+        public void onVmStopped() {
+            Log.d(TAG, "VM stopped");
+            vmState = Constants.VM_STATE_STOPPED;
+            wantVMState(Constants.VM_STATE_RUNNING);
+        }
+
+        @Override
+        public void onVmDestroyed() {
+            Log.d(TAG, "VM destroyed");
+            vmState = Constants.VM_STATE_DESTROYED;
+            if (maintainConnection) {
+                showFatalMessageAndQuit(getContext().getString(R.string.error_vm_terminated));
             }
         }
+
+        @Override
+        public void onPong(int sequence, long rttNanos) {
+            //Log.d(TAG, "pong!");
+            pinger.pong(sequence, rttNanos);
+        }
     };
 }
@@ -110,6 +110,10 @@ public class RemoteCanvasActivity extends Activity implements OnKeyListener,
     }
 
     private void initialize() {
+        // Traces are written to storage, so only for developers
+        if (BuildConfig.DEBUG)
+            StartupTrace.begin();
+
         android.os.StrictMode.ThreadPolicy policy = new android.os.StrictMode.ThreadPolicy.Builder().permitAll().build();
         android.os.StrictMode.setThreadPolicy(policy);
 
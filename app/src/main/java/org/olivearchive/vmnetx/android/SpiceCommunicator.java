@@ -28,8 +28,8 @@ import android.view.MotionEvent;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.freedesktop.gstreamer.GStreamer;
 
-import org.olivearchive.vmnetx.android.protocol.ProtocolException;
 import org.olivearchive.vmnetx.android.protocol.ViewerConnectionProcessor;
+import org.olivearchive.vmnetx.android.protocol.ViewerPool;
 
 public class SpiceCommunicator {
     private final static String TAG = "SpiceCommunicator";
@@ -57,24 +57,32 @@ public class SpiceCommunicator {
     private final RemoteCanvas canvas;
     private final Handler handler;
     private final ConnectionInfo connection;
+    private final ViewerPool viewerPool;
     private final long context;
 
     private boolean isInNormalProtocol;
     private boolean disconnected;
+    // For the startup trace
+    private long connectStart;
     private final ReentrantReadWriteLock disconnectLock =
             new ReentrantReadWriteLock();
 
-    public SpiceCommunicator (Context context, RemoteCanvas canvas, Handler handler, ConnectionInfo connection) {
+    public SpiceCommunicator (Context context, RemoteCanvas canvas, Handler handler, ConnectionInfo connection, ViewerPool viewerPool) {
         this.canvas = canvas;
         this.handler = handler;
         this.connection = connection;
+        this.viewerPool = viewerPool;
+        long start = StartupTrace.now();
         this.context = SpiceClientNewContext();
+        StartupTrace.complete("SpiceClientNewContext", "spice", start);
+        start = StartupTrace.now();
         try {
             GStreamer.init(context);
         } catch (Exception e) {
             e.printStackTrace();
             canvas.displayShortToastMessage(e.getMessage());
         }
+        StartupTrace.complete("GStreamer.init", "spice", start);
     }
 
     private boolean startNativeCall() {
@@ -94,6 +102,7 @@ public class SpiceCommunicator {
         if (!startNativeCall())
             return;
         try {
+            connectStart = StartupTrace.now();
             SpiceClientConnect(context, connection.getToken());
         } finally {
             endNativeCall();
@@ -120,26 +129,6 @@ public class SpiceCommunicator {
         }
     }
 
-    private class ConnectThread extends Thread {
-        private long cookie;
-
-        public ConnectThread(long cookie) {
-            this.cookie = cookie;
-        }
-
-        public void run() {
-            try {
-                int fd = new ViewerConnectionProcessor(connection.getAddress(),
-                                                       Integer.toString(connection.getPort()),
-                                                       connection.getToken()).connect();
-                SpiceSetFd(cookie, fd);
-            } catch (ProtocolException e) {
-                android.util.Log.e(TAG, "Get FD failed", e);
-                disconnect();
-            }
-        }
-    }
-
     private void sendPointerEvent (boolean absolute, int x, int y) {
         if (!startNativeCall())
             return;
@@ -201,11 +190,30 @@ public class SpiceCommunicator {
     }
 
     /* Callbacks from jni */
-    private void OnGetFd(long cookie) {
-        new ConnectThread(cookie).start();
+    private void OnGetFd(final long cookie) {
+        final long start = StartupTrace.now();
+        // Usually a socket is ready and waiting
+        viewerPool.get(new ViewerConnectionProcessor.Callback() {
+            @Override
+            public void onViewerConnected(int fd) {
+                SpiceSetFd(cookie, fd);
+                StartupTrace.complete("channel fd", "spice", start);
+            }
+
+            @Override
+            public void onViewerFailed() {
+                android.util.Log.e(TAG, "Get FD failed");
+                disconnect();
+            }
+        });
     }
 
     private void OnSettingsChanged(int width, int height) {
+        // Called when the primary surface is created
+        if (connectStart != 0) {
+            StartupTrace.complete("connect to primary_create", "spice", connectStart);
+            connectStart = 0;
+        }
         canvas.OnSettingsChanged(width, height);
         isInNormalProtocol = true;
     }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+// A timeline of connection startup, from the activity starting to the
+// first frame on screen.  Spans are timed with System.nanoTime() and
+// recorded from any thread; recording stops at the first frame, and the
+// timeline is written out in Chrome's trace event format, for
+// chrome://tracing or Perfetto.  Recording is a synchronized list append,
+// and only happens during startup.  Nothing is recorded or written until
+// begin() is called, which debug builds alone do.
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private static final String FILENAME = "startup-trace.json";
+    // Stop recording if the first frame never comes
+    private static final int MAX_EVENTS = 512;
+
+    private static final class Event {
+        final String name;
+        final String category;
+        // 'X' complete, 'i' instant
+        final char phase;
+        final long start;
+        final long duration;
+        final long tid;
+
+        Event(String name, String category, char phase, long start,
+                long duration) {
+            this.name = name;
+            this.category = category;
+            this.phase = phase;
+            this.start = start;
+            this.duration = duration;
+            tid = Thread.currentThread().getId();
+        }
+    }
+
+    private static final List<Event> events = new ArrayList<Event>();
+    private static final Map<Long, String> threadNames = new HashMap<Long, String>();
+    private static boolean recording = false;
+    private static long origin;
+
+    private StartupTrace() {}
+
+    // Starts a new timeline, discarding any previous one.
+    public static synchronized void begin() {
+        events.clear();
+        threadNames.clear();
+        origin = System.nanoTime();
+        recording = true;
+        instant("start", "app");
+    }
+
+    // A start time for complete()
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    // Records a span that began at start and ends now.
+    public static void complete(String name, String category, long start) {
+        long end = System.nanoTime();
+        add(new Event(name, category, 'X', start, end - start));
+    }
+
+    public static void instant(String name, String category) {
+        add(new Event(name, category, 'i', System.nanoTime(), 0));
+    }
+
+    // Records the first frame, stops recording, and writes the timeline
+    // to the app's files directory in the background.  Does nothing if
+    // begin() wasn't called.
+    public static void firstFrame(final Context context) {
+        synchronized (StartupTrace.class) {
+            if (!recording)
+                return;
+            instant("first frame", "app");
+            recording = false;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                export(context);
+            }
+        }, "StartupTrace export").start();
+    }
+
+    private static synchronized void add(Event event) {
+        if (!recording)
+            return;
+        if (events.size() >= MAX_EVENTS) {
+            recording = false;
+            return;
+        }
+        events.add(event);
+        if (!threadNames.containsKey(event.tid))
+            threadNames.put(event.tid, Thread.currentThread().getName());
+    }
+
+    private static void export(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null)
+            dir = context.getFilesDir();
+        File file = new File(dir, FILENAME);
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            out.write(toJson());
+            Log.i(TAG, "Wrote startup trace to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write startup trace", e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    // The recorded timeline as a trace event JSON object
+    public static synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":")
+                    .append(thread.getKey()).append(",\"args\":{\"name\":");
+            quote(sb, thread.getValue());
+            sb.append("}}");
+        }
+        for (Event event : events) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append("{\"name\":");
+            quote(sb, event.name);
+            sb.append(",\"cat\":");
+            quote(sb, event.category);
+            sb.append(",\"ph\":\"").append(event.phase)
+                    .append("\",\"pid\":1,\"tid\":").append(event.tid)
+                    .append(",\"ts\":").append(micros(event.start - origin));
+            if (event.phase == 'X')
+                sb.append(",\"dur\":").append(micros(event.duration));
+            else
+                sb.append(",\"s\":\"g\"");
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%d.%03d", nanos / 1000, Math.abs(nanos % 1000));
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -47,7 +47,7 @@ public class Viewport {
     private final static Bitmap.Config BITMAP_CONFIG = Bitmap.Config.ARGB_8888;
 
     private final RemoteCanvas canvas;
-    private final SpiceCommunicator spice;
+    private volatile SpiceCommunicator spice;
     private final Handler handler;
 
     // Image bitmap
@@ -73,6 +73,8 @@ public class Viewport {
     private int visibleRegionWidth;
     private int visibleRegionHeight;
 
+    private volatile boolean firstFrameSeen = false;
+
     // Mouse cursor
     private Bitmap softCursor;
     private final Rect cursorRect = new Rect();
@@ -138,6 +140,15 @@ public class Viewport {
         canvas.setScaleType(ImageView.ScaleType.MATRIX);
     }
 
+    /**
+     * Attach to a new SPICE session after the old one was lost.  The
+     * bitmap is kept, so the last frame stays on screen until the new
+     * session redraws it.
+     */
+    void setSpice(SpiceCommunicator spice) {
+        this.spice = spice;
+    }
+
     /**
      * Update scaling for view and image sizes
      */
@@ -381,7 +392,8 @@ public class Viewport {
             @TargetApi(Build.VERSION_CODES.KITKAT)
             public void run() {
                 synchronized (bitmapLock) {
-                    if (bitmap != null) {
+                    if (bitmap != null && (bitmap.getWidth() != width ||
+                            bitmap.getHeight() != height)) {
                         if (Build.VERSION.SDK_INT >=
                                 Build.VERSION_CODES.KITKAT) {
                             try {
@@ -420,6 +432,10 @@ public class Viewport {
                 return;
             spice.updateBitmap(bitmap, x, y, width, height);
         }
+        if (!firstFrameSeen) {
+            firstFrameSeen = true;
+            StartupTrace.firstFrame(canvas.getContext());
+        }
 
         reDraw(x, y, width, height);
     }
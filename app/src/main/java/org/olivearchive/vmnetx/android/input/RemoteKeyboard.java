@@ -33,7 +33,7 @@ import org.olivearchive.vmnetx.android.SpiceCommunicator;
 public class RemoteKeyboard {
     private static final String TAG = "RemoteKeyboard";
 
-    private final SpiceCommunicator spice;
+    private volatile SpiceCommunicator spice;
     private final KeyRepeater keyRepeater;
     private final ModifierState modifiers;
     // State of the on-screen modifier key buttons
@@ -46,6 +46,11 @@ public class RemoteKeyboard {
         onScreenButtons = modifiers.getOnScreenButtonState();
     }
 
+    // Send to a new SPICE session, keeping the modifier state
+    public void setSpice(SpiceCommunicator s) {
+        spice = s;
+    }
+
     public boolean processLocalKeyEvent(KeyEvent evt) {
         int keyCode = evt.getKeyCode();
         //android.util.Log.d(TAG, evt.toString() + " " + keyCode);
@@ -38,7 +38,7 @@ public class RemotePointer {
     public static final int BUTTON_SCROLL_DOWN	= 5;
 
     private final RemoteCanvas canvas;
-    private final SpiceCommunicator spice;
+    private volatile SpiceCommunicator spice;
     private final ModifierState buttons;
 
     /**
@@ -52,6 +52,11 @@ public class RemotePointer {
         buttons = new ModifierState();
     }
     
+    // Send to a new SPICE session, keeping the pointer state
+    public void setSpice(SpiceCommunicator s) {
+        spice = s;
+    }
+
     public int getX() {
         return mouseX;
     }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.util.Random;
+
+// Delays between reconnection attempts: exponential, with "full jitter"
+// (a uniformly random delay up to the exponential bound), so the first
+// retry is nearly immediate and clients that lost the server together
+// don't come back together.  Not thread-safe.
+public final class Backoff {
+    private final long baseMs;
+    private final long capMs;
+    private final Random random = new Random();
+    private int attempts;
+
+    public Backoff(long baseMs, long capMs) {
+        this.baseMs = baseMs;
+        this.capMs = capMs;
+    }
+
+    // Returns the delay before the next attempt, in ms.
+    public long next() {
+        // Stop doubling well before overflow
+        long bound = Math.min(capMs, baseMs << Math.min(attempts, 20));
+        attempts++;
+        return (long) (random.nextDouble() * bound);
+    }
+
+    // Call once connected.
+    public void reset() {
+        attempts = 0;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
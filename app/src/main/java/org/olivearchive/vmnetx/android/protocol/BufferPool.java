@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Process-wide free lists of buffers.  Buffers for outgoing frames are
+// acquired by the endpoint when building a message and released by the
+// connection processor once the frame has been written out.  Receive
+// buffers are held by a connection for as long as it is open.
+final class BufferPool {
+    static final int RECEIVE_BUFFER_SIZE = 16 << 10;
+
+    static private final BufferPool shared = new BufferPool(256, 64 << 10, 16);
+    static private final BufferPool receive =
+            new BufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_BUFFER_SIZE, 4);
+
+    private final int bufferSize;
+    private final int maxPooledSize;
+    private final int maxPooledCount;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    private BufferPool(int bufferSize, int maxPooledSize, int maxPooledCount) {
+        this.bufferSize = bufferSize;
+        this.maxPooledSize = maxPooledSize;
+        this.maxPooledCount = maxPooledCount;
+    }
+
+    static BufferPool get() {
+        return shared;
+    }
+
+    static BufferPool getReceive() {
+        return receive;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(bufferSize);
+        count.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        // Don't hang on to buffers grown for unusually large messages,
+        // or to views we don't own
+        if (buf.capacity() > maxPooledSize || buf.isReadOnly())
+            return;
+        if (count.incrementAndGet() > maxPooledCount) {
+            count.decrementAndGet();
+            return;
+        }
+        free.add(buf);
+    }
+}
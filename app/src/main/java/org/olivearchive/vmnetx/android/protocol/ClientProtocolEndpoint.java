@@ -13,13 +13,9 @@
 
 package org.olivearchive.vmnetx.android.protocol;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import android.os.Bundle;
 import android.os.Handler;
 
-import org.olivearchive.vmnetx.android.Constants;
+import org.olivearchive.vmnetx.android.StartupTrace;
 
 public class ClientProtocolEndpoint extends ProtocolEndpoint {
     @SuppressWarnings("unused")
@@ -32,15 +28,67 @@ public class ClientProtocolEndpoint extends ProtocolEndpoint {
     protected static final int STATE_VIEWER = 4;
 
     protected int state = STATE_UNAUTHENTICATED;
+    // attach-viewer was sent right after authenticate
+    private boolean attachAfterAuth = false;
+    // When authenticate and attach-viewer were sent, for the metrics
+    private volatile long authSentAt;
+    private volatile long attachSentAt;
+
+    // Send times of recent pings, by sequence number.  The server
+    // answers pings in order, so the nth pong answers ping n.
+    private static final class PingTimes {
+        // Only this many outstanding pings are timed
+        private static final int CAPACITY = 8;
+
+        private final long[] sent = new long[CAPACITY];
+        private int pings;
+        private int pongs;
+
+        synchronized void pingSent() {
+            sent[pings++ % CAPACITY] = System.nanoTime();
+        }
+
+        // Returns the sequence number of the ping answered, or -1 for a
+        // pong we never asked for.
+        synchronized int pongReceived() {
+            if (pongs == pings)
+                return -1;
+            return pongs++;
+        }
+
+        // Returns -1 if the send time is unknown.
+        synchronized long rtt(int sequence, long now) {
+            if (sequence < 0 || pings - sequence > CAPACITY)
+                return -1;
+            return now - sent[sequence % CAPACITY];
+        }
+    }
+
+    private final PingTimes pingTimes = new PingTimes();
+    // Pings are timed from when they reach the socket, not from when
+    // they're queued behind other traffic
+    private final SendFuture.Listener pingWritten = new SendFuture.Listener() {
+        @Override
+        public void onSendComplete(SendFuture future, boolean sent) {
+            if (sent)
+                pingTimes.pingSent();
+        }
+    };
+    // A ping queued while another is still waiting shares its future
+    private SendFuture lastPing;
 
     public ClientProtocolEndpoint(ConnectionProcessor conn, Handler handler) {
         super(conn, handler);
+        registerHandlers();
     }
 
-    ClientProtocolEndpoint(ConnectionProcessor conn, MessageProcessor target) {
+    public ClientProtocolEndpoint(ConnectionProcessor conn,
+            ProtocolListener target) {
         super(conn, target);
+        registerHandlers();
     }
 
+    @Override
     protected void needDispatchState(int state) throws ProtocolException {
         if (state != this.state)
             throw new ProtocolException("Invalid state for operation (currently " + Integer.toString(this.state) + ")");
@@ -51,110 +99,159 @@ public class ClientProtocolEndpoint extends ProtocolEndpoint {
             throw new IllegalStateException("Invalid state for operation (currently " + Integer.toString(this.state) + ")");
     }
 
-    @Override
-    protected void dispatch(RecvMessage msg) throws ProtocolException {
-        if (msg.mtype.equals("auth-ok")) {
-            needDispatchState(STATE_AUTHENTICATING);
-            state = STATE_RUNNING;
-            Bundle bundle = new Bundle();
-            bundle.putInt(Constants.ARG_VM_STATE, msg.getVmState("state"));
-            bundle.putString(Constants.ARG_VM_NAME, msg.getString("name"));
-            bundle.putInt(Constants.ARG_MAX_MOUSE_RATE, msg.getInt("limit_mouse_rate", 0));
-            bundle.putInt(Constants.ARG_SERVER_TIMEOUT_MIN, msg.getInt("server_timeout_min", 0));
-            bundle.putInt(Constants.ARG_SERVER_TIMEOUT_MAX, msg.getInt("server_timeout_max", 0));
-            emit(Constants.CLIENT_PROTOCOL_AUTH_OK, bundle);
-
-        } else if (msg.mtype.equals("auth-failed")) {
-            needDispatchState(STATE_AUTHENTICATING);
-            state = STATE_UNAUTHENTICATED;
-            Bundle bundle = new Bundle();
-            bundle.putString(Constants.ARG_ERROR, msg.getString("error"));
-            emit(Constants.CLIENT_PROTOCOL_AUTH_FAILED, bundle);
-
-        } else if (msg.mtype.equals("attaching-viewer")) {
-            needDispatchState(STATE_ATTACHING_VIEWER);
-            state = STATE_VIEWER;
-            emit(Constants.CLIENT_PROTOCOL_ATTACHING_VIEWER);
-
-        } else if (msg.mtype.equals("startup-progress")) {
-            needDispatchState(STATE_RUNNING);
-            Bundle bundle = new Bundle();
-            bundle.putDouble(Constants.ARG_PROGRESS, msg.getDouble("fraction"));
-            emit(Constants.CLIENT_PROTOCOL_STARTUP_PROGRESS, bundle);
-
-        } else if (msg.mtype.equals("startup-rejected-memory")) {
-            needDispatchState(STATE_RUNNING);
-            emit(Constants.CLIENT_PROTOCOL_STARTUP_REJECTED_MEMORY);
-
-        } else if (msg.mtype.equals("startup-failed")) {
-            needDispatchState(STATE_RUNNING);
-            Bundle bundle = new Bundle();
-            bundle.putString(Constants.ARG_ERROR, msg.getString("message"));
-            emit(Constants.CLIENT_PROTOCOL_STARTUP_FAILED, bundle);
-
-        } else if (msg.mtype.equals("vm-started")) {
-            needDispatchState(STATE_RUNNING);
-            Bundle bundle = new Bundle();
-            bundle.putBoolean(Constants.ARG_CHECK_DISPLAY, msg.getBoolean("check_display"));
-            emit(Constants.CLIENT_PROTOCOL_VM_STARTED, bundle);
-
-        } else if (msg.mtype.equals("vm-stopped")) {
-            if (state == STATE_ATTACHING_VIEWER) {
-                // Could happen on viewer connections while the setup
-                // handshake is running
-                return;
+    private void registerHandlers() {
+        register(new MessageHandler("auth-ok", STATE_AUTHENTICATING) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.AuthOk msg = new Messages.AuthOk();
+                msg.decode(in);
+                // If attach-viewer is already on its way, its reply comes
+                // next
+                metrics().record(TransportMetrics.AUTH_NANOS, System.nanoTime() - authSentAt);
+                StartupTrace.complete(metrics().getName() + " authenticate", "protocol", authSentAt);
+                state = attachAfterAuth ? STATE_ATTACHING_VIEWER : STATE_RUNNING;
+                attachAfterAuth = false;
+                target.onAuthOk(msg.state, msg.name, msg.limitMouseRate,
+                        msg.serverTimeoutMin, msg.serverTimeoutMax);
             }
-            needDispatchState(STATE_RUNNING);
-            emit(Constants.CLIENT_PROTOCOL_VM_STOPPED);
-
-        } else if (msg.mtype.equals("vm-destroyed")) {
-            if (state == STATE_ATTACHING_VIEWER) {
-                // Could happen on viewer connections while the setup
-                // handshake is running
-                return;
+        });
+
+        register(new MessageHandler("auth-failed", STATE_AUTHENTICATING) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.AuthFailed msg = new Messages.AuthFailed();
+                msg.decode(in);
+                state = STATE_UNAUTHENTICATED;
+                attachAfterAuth = false;
+                target.onAuthFailed(msg.error);
             }
-            needDispatchState(STATE_RUNNING);
-            emit(Constants.CLIENT_PROTOCOL_VM_DESTROYED);
+        });
 
-        } else if (msg.mtype.equals("pong")) {
-            emit(Constants.CLIENT_PROTOCOL_PONG);
+        register(new MessageHandler("attaching-viewer", STATE_ATTACHING_VIEWER) {
+            @Override
+            void handle(MessageReader in) {
+                metrics().record(TransportMetrics.ATTACH_NANOS, System.nanoTime() - attachSentAt);
+                StartupTrace.complete("viewer attach", "protocol", attachSentAt);
+                state = STATE_VIEWER;
+                target.onAttachingViewer();
+            }
+        });
 
-        } else {
-            super.dispatch(msg);
-        }
+        register(new MessageHandler("startup-progress", STATE_RUNNING) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.StartupProgress msg = new Messages.StartupProgress();
+                msg.decode(in);
+                target.onStartupProgress(msg.fraction);
+            }
+        });
+
+        register(new MessageHandler("startup-rejected-memory", STATE_RUNNING) {
+            @Override
+            void handle(MessageReader in) {
+                target.onStartupRejectedMemory();
+            }
+        });
+
+        register(new MessageHandler("startup-failed", STATE_RUNNING) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.StartupFailed msg = new Messages.StartupFailed();
+                msg.decode(in);
+                target.onStartupFailed(msg.message);
+            }
+        });
+
+        register(new MessageHandler("vm-started", STATE_RUNNING) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.VmStarted msg = new Messages.VmStarted();
+                msg.decode(in);
+                target.onVmStarted(msg.checkDisplay);
+            }
+        });
+
+        // The VM state messages could arrive on viewer connections while
+        // the setup handshake is running, so they check the state
+        // themselves
+        register(new MessageHandler("vm-stopped", STATE_ANY) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                if (state == STATE_ATTACHING_VIEWER)
+                    return;
+                needDispatchState(STATE_RUNNING);
+                target.onVmStopped();
+            }
+        });
+
+        register(new MessageHandler("vm-destroyed", STATE_ANY) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                if (state == STATE_ATTACHING_VIEWER)
+                    return;
+                needDispatchState(STATE_RUNNING);
+                target.onVmDestroyed();
+            }
+        });
+
+        register(new MessageHandler("pong", STATE_ANY) {
+            @Override
+            void handle(MessageReader in) {
+                long now = System.nanoTime();
+                int sequence = pingTimes.pongReceived();
+                target.onPong(sequence, pingTimes.rtt(sequence, now));
+            }
+        });
     }
 
     public void sendAuthenticate(String token) {
         needSendState(STATE_UNAUTHENTICATED);
         state = STATE_AUTHENTICATING;
-        Map<String, Object> args = new HashMap<String, Object>();
-        args.put("token", token);
-        transmit("authenticate", args);
+        authSentAt = System.nanoTime();
+        transmit(new Messages.Authenticate(token));
+    }
+
+    // Sends authenticate and attach-viewer without waiting for auth-ok
+    // in between, saving a round trip.  The replies arrive in order.
+    public void sendAuthenticateAndAttachViewer(String token) {
+        needSendState(STATE_UNAUTHENTICATED);
+        state = STATE_AUTHENTICATING;
+        attachAfterAuth = true;
+        authSentAt = attachSentAt = System.nanoTime();
+        transmit(new Messages.Authenticate(token));
+        transmit(Messages.ATTACH_VIEWER);
     }
 
     public void sendAttachViewer() {
         needSendState(STATE_RUNNING);
         state = STATE_ATTACHING_VIEWER;
-        transmit("attach-viewer");
+        attachSentAt = System.nanoTime();
+        transmit(Messages.ATTACH_VIEWER);
     }
 
-    public void sendStartVM() {
+    public SendFuture sendStartVM() {
         needSendState(STATE_RUNNING);
-        transmit("start-vm");
+        return transmit(Messages.START_VM);
     }
 
-    public void sendStopVM() {
+    public SendFuture sendStopVM() {
         needSendState(STATE_RUNNING);
-        transmit("stop-vm");
+        return transmit(Messages.STOP_VM);
     }
 
-    public void sendDestroyVM() {
+    public SendFuture sendDestroyVM() {
         needSendState(STATE_RUNNING);
-        transmit("destroy-vm");
+        return transmit(Messages.DESTROY_VM);
     }
 
-    public void sendPing() {
+    // A ping sent while an earlier one is still queued is merged with it
+    public synchronized SendFuture sendPing() {
         needSendState(STATE_RUNNING);
-        transmit("ping");
+        SendFuture future = transmit(SendQueue.PRIORITY_KEEPALIVE, Messages.PING);
+        if (future != lastPing) {
+            lastPing = future;
+            future.setListener(pingWritten);
+        }
+        return future;
     }
 }
@@ -13,7 +13,16 @@
 
 package org.olivearchive.vmnetx.android.protocol;
 
+import java.nio.ByteBuffer;
+
 abstract class ConnectionProcessor {
     abstract void setEndpoint(ProtocolEndpoint endpoint);
-    abstract void send(byte[] data);
+    // frame includes the length header.  The processor takes ownership
+    // of the buffer and returns it to the BufferPool when done with it.
+    // frame may be a read-only view of a shared MessageTemplate buffer.
+    // priority is a SendQueue.PRIORITY_*.  Never blocks; if the frame
+    // can't be queued, the returned future has already failed.
+    abstract SendFuture send(ByteBuffer frame, int priority);
+    // Where the connection's figures are recorded
+    abstract TransportMetrics getMetrics();
 }
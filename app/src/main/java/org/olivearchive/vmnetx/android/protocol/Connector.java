@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import org.olivearchive.vmnetx.android.StartupTrace;
+
+// Opens sockets to one server for every connection in a session.
+// Connection attempts race across the server's addresses in the manner
+// of RFC 8305 ("Happy Eyeballs"): addresses are tried in order,
+// alternating between IPv6 and IPv4, and each attempt gets a head start
+// of the stagger interval before the next one begins.  The first to
+// connect wins and the rest are abandoned.  The family of the winner is
+// tried first by later connections, and lookup results are reused for a
+// while, so reconnecting costs no DNS round trip.
+public final class Connector {
+    private static final String TAG = "Connector";
+
+    static private final int DEFAULT_STAGGER_MS = 250;
+    static private final int DEFAULT_DEADLINE_MS = 30000;
+    static private final long CACHE_LIFETIME_NS = 5 * 60 * 1000000000L;
+
+    private static final int FAMILY_NONE = 0;
+    private static final int FAMILY_INET4 = 4;
+    private static final int FAMILY_INET6 = 6;
+
+    // Addresses from a name lookup, reused until they expire
+    private static final class CachedLookup {
+        final InetAddress[] addresses;
+        final long expires;
+
+        CachedLookup(InetAddress[] addresses) {
+            this.addresses = addresses;
+            expires = System.nanoTime() + CACHE_LIFETIME_NS;
+        }
+    }
+
+    // Called on the reactor thread.
+    interface Callback {
+        // channel is connected and non-blocking.  key is its registration
+        // with the reactor; the callback should attach itself to it.
+        void connected(SocketChannel channel, SelectionKey key) throws IOException;
+        void failed(IOException e);
+    }
+
+    private final String host;
+    private final int port;
+    private volatile long staggerNanos = DEFAULT_STAGGER_MS * 1000000L;
+    private volatile long deadlineNanos = DEFAULT_DEADLINE_MS * 1000000L;
+    private volatile int preferredFamily = FAMILY_NONE;
+    private volatile boolean pipelineViewerHandshake = true;
+    private volatile CachedLookup cachedLookup;
+
+    public Connector(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // How long an attempt gets before the next address is also tried
+    public void setStagger(int millis) {
+        staggerNanos = millis * 1000000L;
+    }
+
+    // How long a connection may take altogether, lookup included
+    public void setDeadline(int millis) {
+        deadlineNanos = millis * 1000000L;
+    }
+
+    // Whether viewer connections send attach-viewer without waiting for
+    // auth-ok.  Cleared for the rest of the session if the server turns
+    // out not to cope.
+    public boolean getPipelineViewerHandshake() {
+        return pipelineViewerHandshake;
+    }
+
+    public void setPipelineViewerHandshake(boolean pipeline) {
+        pipelineViewerHandshake = pipeline;
+    }
+
+    // Forgets what was learned about the network: the cached addresses
+    // and the preferred family.  Call when the device changes networks.
+    public void networkChanged() {
+        cachedLookup = null;
+        preferredFamily = FAMILY_NONE;
+    }
+
+    // Starts connecting.  May be called from any thread.  Returns a
+    // handle that can abandon the attempt, from the reactor thread.
+    // label names the connection in the startup trace.
+    Attempt connect(Reactor reactor, String label, Callback callback) {
+        final Attempt attempt = new Attempt(reactor, label, callback);
+        reactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                attempt.start();
+            }
+        });
+        return attempt;
+    }
+
+    private static int family(InetAddress address) {
+        return address instanceof Inet6Address ? FAMILY_INET6 : FAMILY_INET4;
+    }
+
+    // Orders addresses for the race: the first address of the preferred
+    // family, then alternating families, keeping the resolver's order
+    // within each family.
+    private List<InetAddress> order(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        int preferred = preferredFamily;
+        if (preferred == FAMILY_NONE)
+            preferred = family(addresses[0]);
+        for (InetAddress address : addresses) {
+            if (family(address) == preferred)
+                first.add(address);
+            else
+                second.add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size())
+                ordered.add(first.get(i));
+            if (i < second.size())
+                ordered.add(second.get(i));
+        }
+        return ordered;
+    }
+
+    // One connection being established.  Reactor thread only, apart from
+    // construction.
+    final class Attempt implements Reactor.Resolution {
+        private final Reactor reactor;
+        private final String label;
+        private final Callback callback;
+        private final List<Candidate> racing = new ArrayList<Candidate>();
+        private List<InetAddress> addresses;
+        private int next;
+        private boolean done;
+        private IOException lastError;
+        // Addresses came from the cache
+        private boolean cached;
+        // For the startup trace
+        private long resolveStart;
+        private long connectStart;
+        private Reactor.Timer staggerTimer;
+        private Reactor.Timer deadlineTimer;
+
+        private final Runnable stagger = new Runnable() {
+            @Override
+            public void run() {
+                staggerTimer = null;
+                startNext();
+            }
+        };
+
+        private Attempt(Reactor reactor, String label, Callback callback) {
+            this.reactor = reactor;
+            this.label = label;
+            this.callback = callback;
+        }
+
+        private void start() {
+            if (done)
+                return;
+            deadlineTimer = reactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    deadlineTimer = null;
+                    fail(new SocketTimeoutException("Timed out connecting to " + host));
+                }
+            }, deadlineNanos);
+            CachedLookup lookup = cachedLookup;
+            resolveStart = StartupTrace.now();
+            if (lookup != null && System.nanoTime() - lookup.expires < 0) {
+                cached = true;
+                resolved(lookup.addresses);
+            } else {
+                reactor.resolve(host, this);
+            }
+        }
+
+        // Closes any sockets and stops the race without calling back.
+        void cancel() {
+            if (done)
+                return;
+            done = true;
+            if (staggerTimer != null)
+                staggerTimer.cancel();
+            if (deadlineTimer != null)
+                deadlineTimer.cancel();
+            for (Candidate candidate : racing)
+                candidate.close();
+            racing.clear();
+        }
+
+        @Override
+        public void resolved(InetAddress[] addresses) {
+            if (done)
+                return;
+            if (!cached)
+                cachedLookup = new CachedLookup(addresses);
+            StartupTrace.complete(label + (cached ? " dns (cached)" : " dns"), "net", resolveStart);
+            connectStart = StartupTrace.now();
+            this.addresses = order(addresses);
+            startNext();
+        }
+
+        @Override
+        public void failed(IOException e) {
+            fail(e);
+        }
+
+        private void fail(IOException e) {
+            if (done)
+                return;
+            // The server may have moved; look it up again next time
+            if (cached)
+                cachedLookup = null;
+            cancel();
+            callback.failed(e);
+        }
+
+        private void startNext() {
+            if (staggerTimer != null) {
+                staggerTimer.cancel();
+                staggerTimer = null;
+            }
+            while (!done && next < addresses.size()) {
+                InetAddress address = addresses.get(next++);
+                Candidate candidate = new Candidate(this, address);
+                try {
+                    if (candidate.open()) {
+                        won(candidate);
+                        return;
+                    }
+                    racing.add(candidate);
+                    if (next < addresses.size())
+                        staggerTimer = reactor.schedule(stagger, staggerNanos);
+                    return;
+                } catch (IOException e) {
+                    candidate.close();
+                    lastError = e;
+                }
+            }
+            if (!done && racing.isEmpty())
+                fail(lastError != null ? lastError : new IOException("No addresses for " + host));
+        }
+
+        private void candidateFailed(Candidate candidate, IOException e) {
+            if (done)
+                return;
+            Log.d(TAG, "Connect to " + candidate.address.getHostAddress() + " failed: " + e.getMessage());
+            candidate.close();
+            racing.remove(candidate);
+            lastError = e;
+            // Don't wait out the stagger for an attempt that's over
+            startNext();
+        }
+
+        private void won(Candidate winner) {
+            racing.remove(winner);
+            cancel();
+            preferredFamily = family(winner.address);
+            StartupTrace.complete(label + " connect " + winner.address.getHostAddress(), "net", connectStart);
+            try {
+                winner.channel.socket().setTcpNoDelay(true);
+                callback.connected(winner.channel, winner.key);
+            } catch (IOException e) {
+                winner.close();
+                callback.failed(e);
+            }
+        }
+    }
+
+    private final class Candidate implements Reactor.Channel {
+        private final Attempt attempt;
+        private final InetAddress address;
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        Candidate(Attempt attempt, InetAddress address) {
+            this.attempt = attempt;
+            this.address = address;
+        }
+
+        // Returns true if connected immediately.
+        boolean open() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(new InetSocketAddress(address, port));
+            key = attempt.reactor.register(channel,
+                    connected ? 0 : SelectionKey.OP_CONNECT, this);
+            return connected;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (!channel.finishConnect())
+                return;
+            key.interestOps(0);
+            attempt.won(this);
+        }
+
+        @Override
+        public void failed(IOException e) {
+            attempt.candidateFailed(this, e);
+        }
+
+        void close() {
+            if (key != null)
+                key.cancel();
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
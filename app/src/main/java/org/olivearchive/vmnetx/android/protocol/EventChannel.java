@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+
+// Carries events from the reactor thread to a listener on a Handler's
+// thread.  Events are copied into a fixed ring of preallocated slots, so
+// delivering one costs no Bundle, no Message and no boxing.  The
+// producer never blocks, since it would stall every connection: if the
+// consumer falls a ring behind, further events spill into an unbounded
+// list, in order, until it catches up.  There must be only one producer
+// thread, which the reactor thread is.
+public final class EventChannel implements ProtocolListener {
+    // Must be a power of 2
+    private static final int CAPACITY = 64;
+
+    private static final int CONNECTED = 0;
+    private static final int ERROR = 1;
+    private static final int DISCONNECTED = 2;
+    private static final int AUTH_OK = 3;
+    private static final int AUTH_FAILED = 4;
+    private static final int ATTACHING_VIEWER = 5;
+    private static final int STARTUP_PROGRESS = 6;
+    private static final int STARTUP_REJECTED_MEMORY = 7;
+    private static final int STARTUP_FAILED = 8;
+    private static final int VM_STARTED = 9;
+    private static final int VM_STOPPED = 10;
+    private static final int VM_DESTROYED = 11;
+    private static final int PONG = 12;
+
+    // Union of the arguments of every event type
+    private static final class Event {
+        int type;
+        int i0, i1, i2, i3;
+        long l;
+        double d;
+        boolean b;
+        String s;
+    }
+
+    private final Handler handler;
+    private final ProtocolListener target;
+    private final Event[] ring = new Event[CAPACITY];
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Next slot to deliver; only written by the consumer
+    private volatile long head;
+    // Next slot to fill; only written by the producer
+    private volatile long tail;
+    private volatile boolean closed;
+    // Events that didn't fit in the ring, oldest first.  While there are
+    // any, later events go here too, so they can't overtake them.
+    private final ArrayDeque<Event> overflow = new ArrayDeque<Event>();
+    // Guarded by overflow, but read by the producer without the lock
+    private volatile boolean overflowing;
+    // Producer only: the event being filled in goes to overflow
+    private boolean spilling;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public EventChannel(Handler handler, ProtocolListener target) {
+        this.handler = handler;
+        this.target = target;
+        for (int i = 0; i < CAPACITY; i++)
+            ring[i] = new Event();
+    }
+
+    // Drops any undelivered events and stops accepting new ones.  Must be
+    // called if the handler may stop running our callbacks, or events
+    // would pile up in the overflow list.
+    public void close() {
+        closed = true;
+        handler.removeCallbacks(drainer);
+        synchronized (overflow) {
+            overflow.clear();
+        }
+    }
+
+    // Producer side
+
+    private Event claim(int type) {
+        if (closed)
+            return null;
+        long t = tail;
+        Event event;
+        spilling = overflowing || t - head >= CAPACITY;
+        if (spilling) {
+            // The consumer is far behind.  Allocating is better than
+            // dropping events it has to see.
+            event = new Event();
+        } else {
+            event = ring[(int) t & (CAPACITY - 1)];
+        }
+        event.type = type;
+        return event;
+    }
+
+    private void publish(Event event) {
+        if (spilling) {
+            synchronized (overflow) {
+                overflow.add(event);
+                overflowing = true;
+            }
+        } else {
+            tail = tail + 1;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.getAndSet(true))
+            handler.post(drainer);
+    }
+
+    private void post(int type) {
+        Event event = claim(type);
+        if (event != null)
+            publish(event);
+    }
+
+    private void post(int type, String s) {
+        Event event = claim(type);
+        if (event == null)
+            return;
+        event.s = s;
+        publish(event);
+    }
+
+    @Override
+    public void onConnected() {
+        post(CONNECTED);
+    }
+
+    @Override
+    public void onError(String error) {
+        post(ERROR, error);
+    }
+
+    @Override
+    public void onDisconnected() {
+        post(DISCONNECTED);
+    }
+
+    @Override
+    public void onAuthOk(int state, String name, int maxMouseRate,
+            int serverTimeoutMin, int serverTimeoutMax) {
+        Event event = claim(AUTH_OK);
+        if (event == null)
+            return;
+        event.i0 = state;
+        event.s = name;
+        event.i1 = maxMouseRate;
+        event.i2 = serverTimeoutMin;
+        event.i3 = serverTimeoutMax;
+        publish(event);
+    }
+
+    @Override
+    public void onAuthFailed(String error) {
+        post(AUTH_FAILED, error);
+    }
+
+    @Override
+    public void onAttachingViewer() {
+        post(ATTACHING_VIEWER);
+    }
+
+    @Override
+    public void onStartupProgress(double fraction) {
+        Event event = claim(STARTUP_PROGRESS);
+        if (event == null)
+            return;
+        event.d = fraction;
+        publish(event);
+    }
+
+    @Override
+    public void onStartupRejectedMemory() {
+        post(STARTUP_REJECTED_MEMORY);
+    }
+
+    @Override
+    public void onStartupFailed(String error) {
+        post(STARTUP_FAILED, error);
+    }
+
+    @Override
+    public void onVmStarted(boolean checkDisplay) {
+        Event event = claim(VM_STARTED);
+        if (event == null)
+            return;
+        event.b = checkDisplay;
+        publish(event);
+    }
+
+    @Override
+    public void onVmStopped() {
+        post(VM_STOPPED);
+    }
+
+    @Override
+    public void onVmDestroyed() {
+        post(VM_DESTROYED);
+    }
+
+    @Override
+    public void onPong(int sequence, long rttNanos) {
+        Event event = claim(PONG);
+        if (event == null)
+            return;
+        event.i0 = sequence;
+        event.l = rttNanos;
+        publish(event);
+    }
+
+    // Consumer side
+
+    private void drain() {
+        // Clear the flag first, so an event published after we stop
+        // looking at tail schedules another drain
+        scheduled.set(false);
+        long h = head;
+        while (!closed) {
+            if (h != tail) {
+                Event event = ring[(int) h & (CAPACITY - 1)];
+                try {
+                    deliver(event);
+                } finally {
+                    // Don't keep the string reachable from the ring
+                    event.s = null;
+                    head = ++h;
+                }
+                continue;
+            }
+            // The ring is empty, so anything that spilled is next.  Once
+            // the overflow list is empty too, the producer goes back to
+            // the ring.
+            if (!overflowing)
+                break;
+            Event event;
+            synchronized (overflow) {
+                event = overflow.poll();
+                if (event == null) {
+                    overflowing = false;
+                    break;
+                }
+            }
+            deliver(event);
+        }
+    }
+
+    private void deliver(Event event) {
+        String s = event.s;
+        switch (event.type) {
+        case CONNECTED:
+            target.onConnected();
+            break;
+        case ERROR:
+            target.onError(s);
+            break;
+        case DISCONNECTED:
+            target.onDisconnected();
+            break;
+        case AUTH_OK:
+            target.onAuthOk(event.i0, s, event.i1, event.i2, event.i3);
+            break;
+        case AUTH_FAILED:
+            target.onAuthFailed(s);
+            break;
+        case ATTACHING_VIEWER:
+            target.onAttachingViewer();
+            break;
+        case STARTUP_PROGRESS:
+            target.onStartupProgress(event.d);
+            break;
+        case STARTUP_REJECTED_MEMORY:
+            target.onStartupRejectedMemory();
+            break;
+        case STARTUP_FAILED:
+            target.onStartupFailed(s);
+            break;
+        case VM_STARTED:
+            target.onVmStarted(event.b);
+            break;
+        case VM_STOPPED:
+            target.onVmStopped();
+            break;
+        case VM_DESTROYED:
+            target.onVmDestroyed();
+            break;
+        case PONG:
+            target.onPong(event.i0, event.l);
+            break;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A distribution of non-negative values, kept in the manner of
+// HdrHistogram: each power of two is split into SUB_BUCKETS linear
+// buckets, so any value is known to within 1/SUB_BUCKETS of itself while
+// the whole range of a long fits in a few hundred counters.
+//
+// Only one thread may record, and it does so without locking or atomic
+// read-modify-write.  Any thread may take a snapshot; counts are
+// individually up to date but not necessarily consistent with each other.
+public final class Histogram {
+    static private final int SUB_BUCKET_BITS = 3;
+    static private final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below SUB_BUCKETS get a bucket each; above that, one group
+    // of SUB_BUCKETS per power of two up to 2^62
+    static private final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // count, sum, min, max
+    private final AtomicLongArray totals = new AtomicLongArray(4);
+
+    public Histogram() {
+        totals.set(2, Long.MAX_VALUE);
+    }
+
+    // Recording thread only.  Negative values are recorded as 0.
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        int bucket = bucketOf(value);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        totals.lazySet(0, totals.get(0) + 1);
+        totals.lazySet(1, totals.get(1) + value);
+        if (value < totals.get(2))
+            totals.lazySet(2, value);
+        if (value > totals.get(3))
+            totals.lazySet(3, value);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, totals.get(0), totals.get(1),
+                totals.get(2), totals.get(3));
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Smallest value that falls in the bucket
+    private static long lowestOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long min,
+                long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        // 0 if empty
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // The value that percentile percent of recorded values are at or
+        // below, to the resolution of the buckets.  0 if empty.
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long c : counts)
+                total += c;
+            if (total == 0)
+                return 0;
+            long wanted = (long) Math.ceil(total * percentile / 100);
+            if (wanted < 1)
+                wanted = 1;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    // Highest value in the bucket, but no more than the
+                    // largest value seen
+                    long highest = i + 1 < counts.length ? lowestOf(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.max(Math.min(highest, max), getMin());
+                }
+            }
+            return max;
+        }
+
+        // e.g. "n=12 mean=3.1 p50=3 p90=5 p99=7 max=7", with values
+        // divided by scale
+        public String format(long scale) {
+            if (count == 0)
+                return "n=0";
+            return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                    count, getMean() / scale,
+                    getValueAtPercentile(50) / scale,
+                    getValueAtPercentile(90) / scale,
+                    getValueAtPercentile(99) / scale,
+                    max / scale);
+        }
+    }
+}
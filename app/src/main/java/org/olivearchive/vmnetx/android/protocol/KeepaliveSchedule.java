@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+// Decides how often to ping the server and how many unanswered pings
+// mean the link is dead.  The server keeps a session for at least
+// server_timeout_min seconds after losing contact, so a dead link must be
+// noticed in a fraction of that, leaving time to reconnect.  Within that
+// budget, the interval grows while pongs come back on time, saving radio
+// wakeups on an idle link, and shrinks when a pong is late or missing,
+// so a failing link is confirmed quickly.  Not thread-safe.
+public final class KeepaliveSchedule {
+    static private final int MIN_INTERVAL_MS = 1000;
+    static private final int MAX_INTERVAL_MS = 30000;
+    static private final int INITIAL_INTERVAL_MS = 3000;
+    // Used when the server doesn't give a timeout: 3 pings, 3 s apart
+    static private final int DEFAULT_BUDGET_MS = 9000;
+    // Part of the server timeout we may spend detecting a dead link
+    static private final int BUDGET_DIVISOR = 3;
+    static private final int MIN_LOSS = 2;
+    static private final int MAX_LOSS = 4;
+    // On-time pongs in a row before the interval grows
+    static private final int HEALTHY_STREAK = 4;
+    // A pong is late if its RTT exceeds the smoothed RTT by four times
+    // the jitter, as for TCP's RTO, or by this much, whichever is more
+    static private final long MIN_LATE_SLACK_NS = 200 * 1000000L;
+
+    private final long budgetMs;
+    private final long maxIntervalMs;
+    private long intervalMs;
+    private int lossThreshold;
+    private int streak;
+
+    // Timeouts are in seconds, 0 if not given.
+    public KeepaliveSchedule(int serverTimeoutMin, int serverTimeoutMax) {
+        int timeout = serverTimeoutMin > 0 ? serverTimeoutMin : serverTimeoutMax;
+        if (timeout > 0)
+            budgetMs = Math.max(timeout * 1000L / BUDGET_DIVISOR, MIN_LOSS * MIN_INTERVAL_MS);
+        else
+            budgetMs = DEFAULT_BUDGET_MS;
+        maxIntervalMs = Math.max(Math.min(MAX_INTERVAL_MS, budgetMs / MIN_LOSS), MIN_INTERVAL_MS);
+        setInterval(INITIAL_INTERVAL_MS);
+    }
+
+    // Time until the next ping, in ms
+    public long getInterval() {
+        return intervalMs;
+    }
+
+    // Consecutive unanswered pings after which the link is dead
+    public int getLossThreshold() {
+        return lossThreshold;
+    }
+
+    // A pong arrived.  smoothedRtt and jitter are from before this pong
+    // was counted, or -1 and 0 if there is no history.
+    public void pong(long rttNanos, long smoothedRtt, long jitter) {
+        if (rttNanos >= 0 && smoothedRtt >= 0 &&
+                rttNanos > smoothedRtt + Math.max(4 * jitter, MIN_LATE_SLACK_NS)) {
+            tighten();
+            return;
+        }
+        if (++streak >= HEALTHY_STREAK) {
+            streak = 0;
+            setInterval(intervalMs * 3 / 2);
+        }
+    }
+
+    // The interval passed without a pong for the last ping.
+    public void missed() {
+        tighten();
+    }
+
+    private void tighten() {
+        streak = 0;
+        setInterval(intervalMs / 2);
+    }
+
+    private void setInterval(long ms) {
+        intervalMs = Math.max(Math.min(ms, maxIntervalMs), MIN_INTERVAL_MS);
+        // Fit the whole detection window into the budget
+        lossThreshold = (int) Math.max(Math.min(budgetMs / intervalMs, MAX_LOSS), MIN_LOSS);
+    }
+
+    @Override
+    public String toString() {
+        return "interval=" + Long.toString(intervalMs) + "ms loss=" +
+                Integer.toString(lossThreshold) + " budget=" +
+                Long.toString(budgetMs) + "ms";
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+// Round-trip times of control connection pings over a session.  Keeps
+// the distribution, a smoothed RTT as in TCP (RFC 6298), and jitter as in
+// RTP (RFC 3550): a moving average of the change in RTT between
+// consecutive pings.  The figures carry over from one connection to the
+// next.  One thread records; any thread may read.
+public final class LatencyStats {
+    // Gains of the moving averages, as shifts
+    static private final int SRTT_SHIFT = 3;
+    static private final int JITTER_SHIFT = 4;
+
+    private final Histogram rtts = new Histogram();
+    private volatile long lastRtt = -1;
+    private volatile long smoothedRtt = -1;
+    private volatile long jitter = 0;
+    private volatile int lastSequence = -1;
+    // Pongs whose ping time was unknown, or that skipped a sequence
+    // number within a connection
+    private volatile int unmatched = 0;
+
+    // Recording thread only.  Call when a new connection is made, since
+    // its pings are numbered from 0 again.
+    public void newConnection() {
+        lastSequence = -1;
+        // Don't compare RTTs across connections
+        lastRtt = -1;
+    }
+
+    // Recording thread only.  Takes the arguments of
+    // ProtocolListener.onPong().
+    public void record(int sequence, long rttNanos) {
+        if (rttNanos < 0 || (lastSequence >= 0 && sequence != lastSequence + 1)) {
+            // Don't compare RTTs across the gap
+            unmatched++;
+            lastSequence = sequence;
+            lastRtt = -1;
+            if (rttNanos < 0)
+                return;
+        }
+        lastSequence = sequence;
+        rtts.record(rttNanos);
+        long last = lastRtt;
+        lastRtt = rttNanos;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttNanos;
+            return;
+        }
+        smoothedRtt += (rttNanos - smoothedRtt) >> SRTT_SHIFT;
+        if (last >= 0)
+            jitter += (Math.abs(rttNanos - last) - jitter) >> JITTER_SHIFT;
+    }
+
+    // Latest RTT in ns, or -1 if none
+    public long getLastRtt() {
+        return lastRtt;
+    }
+
+    // Smoothed RTT in ns, or -1 if none
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    // Jitter in ns
+    public long getJitter() {
+        return jitter;
+    }
+
+    public int getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getUnmatched() {
+        return unmatched;
+    }
+
+    // RTT distribution in ns
+    public Histogram.Snapshot getRttHistogram() {
+        return rtts.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("srtt=%.1fms jitter=%.1fms seq=%d unmatched=%d [rtt_ms %s]",
+                smoothedRtt / 1e6, jitter / 1e6, lastSequence, unmatched,
+                rtts.snapshot().format(1000000));
+    }
+}
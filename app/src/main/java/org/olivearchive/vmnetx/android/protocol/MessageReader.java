@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+
+import net.asdfa.msgpack.InvalidMsgPackDataException;
+import net.asdfa.msgpack.MsgPack;
+
+// Walks one received message map in a single pass.  readType() reads up
+// to the type entry, so the message can be dispatched before the rest of
+// the map is touched; the handler's ReceivedMessage then reads its fields
+// from where the type left off.  Entries before the type, if the sender
+// puts any there, are skipped the first time and read on a second pass.
+// The frame is only borrowed for the duration of dispatch.  One reader
+// may be reused for frame after frame, on one thread.
+final class MessageReader {
+    // Keys are matched as bytes and the type is looked up among the
+    // registered strings, so only the free-text values are decoded, and
+    // those needn't be canonical
+    static final int READER_OPTIONS = MsgPack.UNPACK_RAW_AS_STRING;
+    // Control messages are small, flat maps.  A frame claiming much more
+    // than that is corrupt or hostile, and is rejected as soon as the
+    // claim is read, including in values that are only skipped.
+    static final MsgPack.Limits RECV_LIMITS =
+            new MsgPack.Limits(1 << 20, 1024, 4);
+
+    private final MsgPack.Reader reader;
+    private int entries;
+    // Index of the type entry, and of the next entry to read
+    private int typeEntry;
+    private int entry;
+    // Entries before the type are still to be read
+    private boolean rewind;
+
+    MessageReader(ByteBuffer data) {
+        reader = new MsgPack.Reader(data, READER_OPTIONS, RECV_LIMITS);
+    }
+
+    // Starts on the next frame.
+    void reset(ByteBuffer data) {
+        reader.reset(data);
+        rewind = false;
+    }
+
+    // Returns the type of the message.  Types registered with
+    // MsgPack.registerString() come back as the registered instance, so
+    // they can be looked up by identity.
+    String readType() throws ProtocolException {
+        try {
+            readMapHeader();
+            for (typeEntry = 0; typeEntry < entries; typeEntry++) {
+                if (!readKey())
+                    continue;
+                if (reader.matches(Messages.MTYPE_KEY)) {
+                    if (reader.next() != MsgPack.Token.STRING)
+                        break;
+                    entry = typeEntry + 1;
+                    rewind = typeEntry > 0;
+                    return reader.getCanonicalString();
+                }
+                reader.skipValue();
+            }
+        } catch (InvalidMsgPackDataException e) {
+            throw new ProtocolException("MessagePack decode failure", e);
+        }
+        throw new ProtocolException("Received message without a type");
+    }
+
+    // Advances to the key of the next field other than the type, or
+    // returns false if there are none left.  The caller may match the
+    // key, and must then read or skip the field's value.  Only valid
+    // after readType().
+    boolean nextField() throws InvalidMsgPackDataException, ProtocolException {
+        if (rewind) {
+            rewind = false;
+            reader.reset();
+            readMapHeader();
+            entry = 0;
+        }
+        while (entry < entries) {
+            // Only reached on the second pass
+            if (entry++ == typeEntry) {
+                readKey();
+                reader.skipValue();
+            } else if (readKey()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    MsgPack.Reader getReader() {
+        return reader;
+    }
+
+    private void readMapHeader() throws InvalidMsgPackDataException, ProtocolException {
+        if (reader.next() != MsgPack.Token.MAP_START)
+            throw new ProtocolException("Received message that is not a map");
+        entries = reader.getSize();
+    }
+
+    // Reads the key of the next entry.  Entries with keys that aren't
+    // strings can't name a field, so they are skipped whole, and false
+    // is returned.
+    private boolean readKey() throws InvalidMsgPackDataException {
+        MsgPack.Token token = reader.next();
+        if (token == MsgPack.Token.KEY)
+            return true;
+        int elements = 0;
+        if (token == MsgPack.Token.ARRAY_START)
+            elements = reader.getSize();
+        else if (token == MsgPack.Token.MAP_START)
+            elements = 2 * reader.getSize();
+        for (int i = 0; i < elements; i++)
+            reader.skipValue();
+        reader.skipValue();
+        return false;
+    }
+}
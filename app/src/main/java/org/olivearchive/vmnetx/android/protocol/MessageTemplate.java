@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+
+import net.asdfa.msgpack.BufferPacker;
+
+// An outgoing message type whose encoding is worked out once, when the
+// template is created.  Messages without fields are encoded in full,
+// length header included, and every send gets a read-only duplicate of
+// the same buffer.  For messages with fields, the map header, message
+// type and field keys are encoded up front and copied into each frame
+// by SentMessage, which packs the values in between.
+final class MessageTemplate {
+    private final String mtype;
+    // Entire frame if there are no fields, otherwise the map header and
+    // message type
+    private final ByteBuffer prefix;
+    private final ByteBuffer[] keys;
+
+    MessageTemplate(String mtype, String... fieldNames) {
+        this.mtype = mtype;
+
+        BufferPacker packer = new BufferPacker(ByteBuffer.allocate(64));
+        if (fieldNames.length == 0)
+            packer.beginFrame();
+        packer.packMapHeader(fieldNames.length + 1);
+        packer.packString(Messages.MTYPE_KEY);
+        packer.packString(mtype);
+        if (fieldNames.length == 0)
+            prefix = packer.endFrame().asReadOnlyBuffer();
+        else
+            prefix = flip(packer);
+
+        keys = new ByteBuffer[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            packer.reset(ByteBuffer.allocate(32));
+            packer.packString(fieldNames[i]);
+            keys[i] = flip(packer);
+        }
+    }
+
+    // Returns the frame of a message without fields, ready to be passed
+    // to ConnectionProcessor.send().
+    ByteBuffer frame() {
+        if (keys.length != 0)
+            throw new IllegalStateException("Message " + mtype + " has fields");
+        return prefix.duplicate();
+    }
+
+    int getFieldCount() {
+        return keys.length;
+    }
+
+    // Starts a frame in a pooled buffer, with everything up to the first
+    // field key already written.
+    BufferPacker begin() {
+        BufferPacker packer = new BufferPacker(BufferPool.get().acquire());
+        packer.beginFrame();
+        packer.putPacked(prefix.duplicate());
+        return packer;
+    }
+
+    void putKey(BufferPacker packer, int field) {
+        packer.putPacked(keys[field].duplicate());
+    }
+
+    private static ByteBuffer flip(BufferPacker packer) {
+        ByteBuffer buf = packer.getBuffer();
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import net.asdfa.msgpack.BufferPacker;
+
+// Wire schema of the control protocol: the incoming messages that carry
+// fields, and the outgoing messages.  Incoming messages with no fields
+// of interest are dispatched on their type alone.
+//
+// These codecs are written by hand on purpose.  There are seven of
+// them, none with more than five scalar fields, and each is exactly the
+// table and switch a generator would emit; an annotation processor
+// would add a build step to the app for no less code to review.  The
+// typed fields still give the compiler the schema.
+final class Messages {
+    // Key of the message type in every message map
+    static final String MTYPE_KEY = "_";
+
+    // Outgoing messages without fields
+    static final MessageTemplate ATTACH_VIEWER =
+            new MessageTemplate("attach-viewer");
+    static final MessageTemplate START_VM =
+            new MessageTemplate("start-vm");
+    static final MessageTemplate STOP_VM =
+            new MessageTemplate("stop-vm");
+    static final MessageTemplate DESTROY_VM =
+            new MessageTemplate("destroy-vm");
+    static final MessageTemplate PING =
+            new MessageTemplate("ping");
+
+    private Messages() {}
+
+    static final class Authenticate extends SentMessage {
+        private static final MessageTemplate TEMPLATE =
+                new MessageTemplate("authenticate", "token");
+
+        final String token;
+
+        Authenticate(String token) {
+            super(TEMPLATE);
+            this.token = token;
+        }
+
+        @Override
+        protected void encodeField(BufferPacker packer, int field) {
+            packer.packString(token);
+        }
+    }
+
+    static final class ServerError extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("message");
+
+        String message;
+
+        ServerError() {
+            super("error", FIELDS, 0x1);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            message = readString();
+        }
+    }
+
+    static final class AuthOk extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("state", "name",
+                "limit_mouse_rate", "server_timeout_min",
+                "server_timeout_max");
+
+        int state;
+        String name;
+        int limitMouseRate;
+        int serverTimeoutMin;
+        int serverTimeoutMax;
+
+        AuthOk() {
+            super("auth-ok", FIELDS, 0x3);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            switch (field) {
+            case 0:
+                state = readVmState();
+                break;
+            case 1:
+                name = readString();
+                break;
+            case 2:
+                limitMouseRate = readInt();
+                break;
+            case 3:
+                serverTimeoutMin = readInt();
+                break;
+            case 4:
+                serverTimeoutMax = readInt();
+                break;
+            }
+        }
+    }
+
+    static final class AuthFailed extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("error");
+
+        String error;
+
+        AuthFailed() {
+            super("auth-failed", FIELDS, 0x1);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            error = readString();
+        }
+    }
+
+    static final class StartupProgress extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("fraction");
+
+        double fraction;
+
+        StartupProgress() {
+            super("startup-progress", FIELDS, 0x1);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            fraction = readDouble();
+        }
+    }
+
+    static final class StartupFailed extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("message");
+
+        String message;
+
+        StartupFailed() {
+            super("startup-failed", FIELDS, 0x1);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            message = readString();
+        }
+    }
+
+    static final class VmStarted extends ReceivedMessage {
+        private static final Fields FIELDS = new Fields("check_display");
+
+        boolean checkDisplay;
+
+        VmStarted() {
+            super("vm-started", FIELDS, 0x1);
+        }
+
+        @Override
+        protected void decodeField(int field) throws ProtocolException {
+            checkDisplay = readBoolean();
+        }
+    }
+}
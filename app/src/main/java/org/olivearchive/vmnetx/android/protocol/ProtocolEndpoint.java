@@ -13,8 +13,8 @@
 
 package org.olivearchive.vmnetx.android.protocol;
 
-import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 import android.os.Bundle;
@@ -28,182 +28,253 @@ import org.olivearchive.vmnetx.android.Constants;
 abstract class ProtocolEndpoint {
     @SuppressWarnings("unused")
     static private final String TAG = "ProtocolEndpoint";
-    static private final String MTYPE_KEY = "_";
 
-    static protected final class RecvMessage {
-        @SuppressWarnings("unused")
-        static private final String TAG = "RecvMessage";
+    // For handlers that can run in any state
+    protected static final int STATE_ANY = -1;
+
+    // Handles one type of incoming message.  Keeps counts of, and the time
+    // spent in, its invocations; these are only written from the reactor
+    // thread.
+    abstract static class MessageHandler {
+        final String mtype;
+        final int requiredState;
+        private volatile long invocations;
+        private volatile long totalNanos;
+        private volatile long maxNanos;
+
+        // The endpoint must be in requiredState (unless STATE_ANY) for
+        // the message to be valid.
+        MessageHandler(String mtype, int requiredState) {
+            this.mtype = mtype;
+            this.requiredState = requiredState;
+        }
 
-        public final String mtype;
-        private final Map<Object, Object> items;
+        // in is positioned just after the message type, and is only valid
+        // for the duration of the call.
+        abstract void handle(MessageReader in) throws ProtocolException;
 
-        public RecvMessage(byte[] data) throws ProtocolException {
-            Object o;
+        private void invoke(MessageReader in) throws ProtocolException {
+            long start = System.nanoTime();
             try {
-                o = MsgPack.unpack(data, MsgPack.UNPACK_RAW_AS_STRING);
-            } catch (IOException e) {
-                throw new ProtocolException("MessagePack decode failure", e);
-            }
-            if (o instanceof Map) {
-                @SuppressWarnings("unchecked")
-                Map<Object, Object> om = (Map<Object, Object>) o;
-                items = om;
-
-                Object mt = items.remove(MTYPE_KEY);
-                if (mt != null && mt instanceof String)
-                    mtype = (String) mt;
-                else
-                    throw new ProtocolException("Received message without a type");
-                //android.util.Log.d(TAG, "Received message: " + mtype);
-            } else {
-                throw new ProtocolException("Received message is not a map object");
+                handle(in);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                invocations++;
+                totalNanos += elapsed;
+                if (elapsed > maxNanos)
+                    maxNanos = elapsed;
             }
         }
 
-        private Object get(Class<?> cls, String key) throws ProtocolException {
-            Object o = get(cls, key, null);
-            if (o != null)
-                return o;
-            else
-                throw new ProtocolException("Missing required value " + key + " in message " + mtype);
-        }
-
-        private Object get(Class<?> cls, String key, Object defaul) throws ProtocolException {
-            if (defaul != null && !cls.isInstance(defaul))
-                throw new IllegalArgumentException("defaul is not an instance of cls");
-            Object o = items.get(key);
-            if (o != null) {
-                if (cls.isInstance(o))
-                    return o;
-                else
-                    throw new ProtocolException("Invalid type for field " + key + " in message " + mtype);
-            } else {
-                return defaul;
-            }
+        long getInvocations() {
+            return invocations;
         }
 
-        public String getString(String key) throws ProtocolException {
-            return (String) get(String.class, key);
+        long getTotalNanos() {
+            return totalNanos;
         }
 
-        public String getString(String key, String defaul) throws ProtocolException {
-            return (String) get(String.class, key, defaul);
+        long getMaxNanos() {
+            return maxNanos;
         }
+    }
 
-        public int getVmState(String key) throws ProtocolException {
-            String vmState = getString(key);
-            if (vmState.equals("stopped"))
-                return Constants.VM_STATE_STOPPED;
-            else if (vmState.equals("starting"))
-                return Constants.VM_STATE_STARTING;
-            else if (vmState.equals("running"))
-                return Constants.VM_STATE_RUNNING;
-            else if (vmState.equals("stopping"))
-                return Constants.VM_STATE_STOPPING;
-            else
-                return Constants.VM_STATE_UNKNOWN;
+    // Compatibility shim for listeners that want Android Messages.  Each
+    // event becomes a Message with a Bundle of Constants.ARG_* arguments;
+    // the what field is the corresponding Constants event.
+    private static class HandlerListener implements ProtocolListener {
+        private final Handler handler;
+
+        public HandlerListener(Handler handler) {
+            this.handler = handler;
         }
 
-        public int getInt(String key) throws ProtocolException {
-            return (Integer) get(Integer.class, key);
+        private void send(int what) {
+            send(what, null);
         }
 
-        public int getInt(String key, int defaul) throws ProtocolException {
-            return (Integer) get(Integer.class, key, defaul);
+        private void send(int what, Bundle args) {
+            Message message = handler.obtainMessage(what);
+            if (args != null)
+                message.setData(args);
+            handler.sendMessage(message);
         }
 
-        public double getDouble(String key) throws ProtocolException {
-            return (Double) get(Double.class, key);
+        private void sendError(int what, String error) {
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.ARG_ERROR, error);
+            send(what, bundle);
         }
 
-        public double getDouble(String key, double defaul) throws ProtocolException {
-            return (Double) get(Double.class, key, defaul);
+        @Override
+        public void onConnected() {
+            send(Constants.PROTOCOL_CONNECTED);
         }
 
-        public boolean getBoolean(String key) throws ProtocolException {
-            return (Boolean) get(Boolean.class, key);
+        @Override
+        public void onError(String error) {
+            sendError(Constants.PROTOCOL_ERROR, error);
         }
 
-        public boolean getBoolean(String key, boolean defaul) throws ProtocolException {
-            return (Boolean) get(Boolean.class, key, defaul);
+        @Override
+        public void onDisconnected() {
+            send(Constants.PROTOCOL_DISCONNECTED);
         }
-    }
 
-    // The object that receives decoded messages from us.
-    interface MessageProcessor {
-        void processMessage(int what, Bundle args);
-    }
+        @Override
+        public void onAuthOk(int state, String name, int maxMouseRate,
+                int serverTimeoutMin, int serverTimeoutMax) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(Constants.ARG_VM_STATE, state);
+            bundle.putString(Constants.ARG_VM_NAME, name);
+            bundle.putInt(Constants.ARG_MAX_MOUSE_RATE, maxMouseRate);
+            bundle.putInt(Constants.ARG_SERVER_TIMEOUT_MIN, serverTimeoutMin);
+            bundle.putInt(Constants.ARG_SERVER_TIMEOUT_MAX, serverTimeoutMax);
+            send(Constants.CLIENT_PROTOCOL_AUTH_OK, bundle);
+        }
 
-    private static class HandlerMessageProcessor implements MessageProcessor {
-        private final Handler handler;
+        @Override
+        public void onAuthFailed(String error) {
+            sendError(Constants.CLIENT_PROTOCOL_AUTH_FAILED, error);
+        }
 
-        public HandlerMessageProcessor(Handler handler) {
-            this.handler = handler;
+        @Override
+        public void onAttachingViewer() {
+            send(Constants.CLIENT_PROTOCOL_ATTACHING_VIEWER);
         }
 
         @Override
-        public void processMessage(int what, Bundle args) {
-            Message message = handler.obtainMessage(what);
-            if (args != null)
-                message.setData(args);
-            handler.sendMessage(message);
+        public void onStartupProgress(double fraction) {
+            Bundle bundle = new Bundle();
+            bundle.putDouble(Constants.ARG_PROGRESS, fraction);
+            send(Constants.CLIENT_PROTOCOL_STARTUP_PROGRESS, bundle);
+        }
+
+        @Override
+        public void onStartupRejectedMemory() {
+            send(Constants.CLIENT_PROTOCOL_STARTUP_REJECTED_MEMORY);
+        }
+
+        @Override
+        public void onStartupFailed(String error) {
+            sendError(Constants.CLIENT_PROTOCOL_STARTUP_FAILED, error);
+        }
+
+        @Override
+        public void onVmStarted(boolean checkDisplay) {
+            Bundle bundle = new Bundle();
+            bundle.putBoolean(Constants.ARG_CHECK_DISPLAY, checkDisplay);
+            send(Constants.CLIENT_PROTOCOL_VM_STARTED, bundle);
+        }
+
+        @Override
+        public void onVmStopped() {
+            send(Constants.CLIENT_PROTOCOL_VM_STOPPED);
+        }
+
+        @Override
+        public void onVmDestroyed() {
+            send(Constants.CLIENT_PROTOCOL_VM_DESTROYED);
+        }
+
+        @Override
+        public void onPong(int sequence, long rttNanos) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(Constants.ARG_SEQUENCE, sequence);
+            bundle.putLong(Constants.ARG_RTT, rttNanos);
+            send(Constants.CLIENT_PROTOCOL_PONG, bundle);
         }
     }
 
     private final ConnectionProcessor conn;
-    private final MessageProcessor target;
+    protected final ProtocolListener target;
+    // Message types are canonical, so they can be looked up by identity
+    private final Map<String, MessageHandler> handlers =
+            new IdentityHashMap<String, MessageHandler>();
+    // Reused for each received frame
+    private MessageReader in;
 
     ProtocolEndpoint(ConnectionProcessor conn, Handler handler) {
-        this(conn, new HandlerMessageProcessor(handler));
+        this(conn, new HandlerListener(handler));
     }
 
-    ProtocolEndpoint(ConnectionProcessor conn, MessageProcessor target) {
+    ProtocolEndpoint(ConnectionProcessor conn, ProtocolListener target) {
         this.conn = conn;
         this.target = target;
         conn.setEndpoint(this);
+
+        register(new MessageHandler("error", STATE_ANY) {
+            @Override
+            void handle(MessageReader in) throws ProtocolException {
+                Messages.ServerError msg = new Messages.ServerError();
+                msg.decode(in);
+                target.onError(msg.message);
+            }
+        });
     }
 
-    void connected() {
-        emit(Constants.PROTOCOL_CONNECTED);
+    // Adds the handler for a message type, replacing any existing one.
+    protected void register(MessageHandler handler) {
+        handlers.put(MsgPack.registerString(handler.mtype), handler);
     }
 
-    void dispatch(byte[] data) throws ProtocolException {
-        dispatch(new RecvMessage(data));
+    // Invocation counts and times of each message type received so far,
+    // for the log.  May be called from any thread.
+    public String getHandlerStats() {
+        StringBuilder sb = new StringBuilder();
+        for (MessageHandler handler : handlers.values()) {
+            long invocations = handler.getInvocations();
+            if (invocations == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(String.format("%s n=%d avg=%.1fus max=%.1fus",
+                    handler.mtype, invocations,
+                    handler.getTotalNanos() / 1e3 / invocations,
+                    handler.getMaxNanos() / 1e3));
+        }
+        return sb.toString();
     }
 
-    void disconnected() {
-        emit(Constants.PROTOCOL_DISCONNECTED);
+    // Checks that the endpoint is in the state required by a handler.
+    protected abstract void needDispatchState(int state) throws ProtocolException;
+
+    void connected() {
+        target.onConnected();
     }
 
-    protected void dispatch(RecvMessage msg) throws ProtocolException {
-        if (msg.mtype.equals("error")) {
-            Bundle bundle = new Bundle();
-            bundle.putString(Constants.ARG_ERROR, msg.getString("message"));
-            emit(Constants.PROTOCOL_ERROR, bundle);
+    // The buffer is only borrowed for the duration of the call.
+    void dispatch(ByteBuffer data) throws ProtocolException {
+        if (in == null)
+            in = new MessageReader(data);
+        else
+            in.reset(data);
+        String mtype = in.readType();
+        MessageHandler handler = handlers.get(mtype);
+        if (handler == null)
+            throw new ProtocolException("Received unknown message of type " + mtype);
+        if (handler.requiredState != STATE_ANY)
+            needDispatchState(handler.requiredState);
+        handler.invoke(in);
+    }
 
-        } else {
-            throw new ProtocolException("Received unknown message of type " + msg.mtype);
-        }
+    void disconnected() {
+        target.onDisconnected();
     }
 
-    protected void transmit(String mtype) {
-        transmit(mtype, null);
+    protected TransportMetrics metrics() {
+        return conn.getMetrics();
     }
 
-    protected void transmit(String mtype, Map<String, Object> args) {
-        Map<String, Object> o = new HashMap<String, Object>();
-        if (args != null)
-            o.putAll(args);
-        o.put(MTYPE_KEY, mtype);
-        byte[] data = MsgPack.pack(o);
-        conn.send(data);
+    protected SendFuture transmit(SentMessage msg) {
+        return conn.send(msg.encode(), SendQueue.PRIORITY_CONTROL);
     }
 
-    protected void emit(int what) {
-        target.processMessage(what, null);
+    protected SendFuture transmit(MessageTemplate template) {
+        return transmit(SendQueue.PRIORITY_CONTROL, template);
     }
 
-    protected void emit(int what, Bundle args) {
-        target.processMessage(what, args);
+    protected SendFuture transmit(int priority, MessageTemplate template) {
+        return conn.send(template.frame(), priority);
     }
 }
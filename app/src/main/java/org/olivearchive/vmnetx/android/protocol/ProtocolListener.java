@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+// Receives decoded protocol events from a ProtocolEndpoint.  Methods are
+// called on the reactor thread unless the listener is wrapped in an
+// EventChannel, which moves them to a Handler's thread.
+public interface ProtocolListener {
+    // Base protocol events
+    void onConnected();
+    void onError(String error);
+    void onDisconnected();
+
+    // Client protocol events
+    // state is a Constants.VM_STATE_*
+    void onAuthOk(int state, String name, int maxMouseRate,
+            int serverTimeoutMin, int serverTimeoutMax);
+    void onAuthFailed(String error);
+    void onAttachingViewer();
+    void onStartupProgress(double fraction);
+    void onStartupRejectedMemory();
+    void onStartupFailed(String error);
+    void onVmStarted(boolean checkDisplay);
+    void onVmStopped();
+    void onVmDestroyed();
+    // sequence numbers the connection's pings from 0.  rttNanos is the
+    // time since that ping was sent, or -1 if unknown.
+    void onPong(int sequence, long rttNanos);
+
+    // Ignores every event; subclasses override the ones they want.
+    abstract class Adapter implements ProtocolListener {
+        @Override
+        public void onConnected() {}
+
+        @Override
+        public void onError(String error) {}
+
+        @Override
+        public void onDisconnected() {}
+
+        @Override
+        public void onAuthOk(int state, String name, int maxMouseRate,
+                int serverTimeoutMin, int serverTimeoutMax) {}
+
+        @Override
+        public void onAuthFailed(String error) {}
+
+        @Override
+        public void onAttachingViewer() {}
+
+        @Override
+        public void onStartupProgress(double fraction) {}
+
+        @Override
+        public void onStartupRejectedMemory() {}
+
+        @Override
+        public void onStartupFailed(String error) {}
+
+        @Override
+        public void onVmStarted(boolean checkDisplay) {}
+
+        @Override
+        public void onVmStopped() {}
+
+        @Override
+        public void onVmDestroyed() {}
+
+        @Override
+        public void onPong(int sequence, long rttNanos) {}
+    }
+}
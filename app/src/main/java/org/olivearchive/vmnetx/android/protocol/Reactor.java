@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+// The I/O thread shared by every VMNetX connection in the process.  All
+// sockets are non-blocking and registered with one Selector, and each
+// connection is a state machine driven by callbacks on this thread, so
+// the thread count doesn't grow with the number of connections.  Name
+// lookups block, so they run on a separate resolver thread.
+final class Reactor implements Runnable {
+    private static final String TAG = "Reactor";
+
+    // A registered channel.  Called on the reactor thread.
+    interface Channel {
+        void ready(SelectionKey key) throws IOException;
+        // ready() threw; the channel should shut itself down
+        void failed(IOException e);
+    }
+
+    // Result of resolve(), delivered on the reactor thread
+    interface Resolution {
+        void resolved(InetAddress[] addresses);
+        void failed(IOException e);
+    }
+
+    static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private static Reactor shared;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+    private final ExecutorService resolver =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VMNetX resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile Thread thread;
+
+    // Reactor thread private state
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+    private Reactor() throws IOException {
+        selector = Selector.open();
+    }
+
+    static synchronized Reactor get() throws IOException {
+        if (shared == null) {
+            Reactor reactor = new Reactor();
+            Thread thread = new Thread(reactor, "VMNetX reactor");
+            thread.setDaemon(true);
+            reactor.thread = thread;
+            thread.start();
+            shared = reactor;
+        }
+        return shared;
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Runs the task on the reactor thread.  May be called from any thread.
+    void submit(Runnable task) {
+        tasks.add(task);
+        if (!inReactorThread())
+            wakeup();
+    }
+
+    // Looks up the addresses of host and reports them on the reactor
+    // thread.  May be called from any thread.
+    void resolve(final String host, final Resolution resolution) {
+        resolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final InetAddress[] addresses = InetAddress.getAllByName(host);
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            resolution.resolved(addresses);
+                        }
+                    });
+                } catch (final IOException e) {
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            resolution.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Reactor thread only.
+    SelectionKey register(SelectableChannel channel, int ops,
+            Channel handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    // Runs the task on the reactor thread after the delay.  Reactor
+    // thread only.
+    Timer schedule(Runnable task, long delayNanos) {
+        Timer timer = new Timer(task, System.nanoTime() + delayNanos);
+        timers.add(timer);
+        return timer;
+    }
+
+    private void wakeup() {
+        try {
+            selector.wakeup();
+        } catch (Exception e) {
+            // Should be impossible to get IOExceptions, but Lollipop
+            // throws them
+            // https://code.google.com/p/android/issues/detail?id=80785
+            if (!(e instanceof IOException))
+                throw new RuntimeException(e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Don't take down every connection in the process
+                Log.e(TAG, "Reactor task failed", e);
+            }
+        }
+    }
+
+    // Returns the number of milliseconds until the next timer is due, or
+    // 0 if there are none.
+    private long runTimers() {
+        while (true) {
+            Timer timer = timers.peek();
+            if (timer == null)
+                return 0;
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long remaining = timer.deadline - System.nanoTime();
+            if (remaining > 0) {
+                // Round up, since select() treats 0 as forever
+                return (remaining + 999999) / 1000000;
+            }
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Reactor timer failed", e);
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Channel channel = (Channel) key.attachment();
+        try {
+            if (key.isValid()) {
+                long start = System.nanoTime();
+                channel.ready(key);
+                TransportMetrics.REACTOR.record(TransportMetrics.READY_NANOS, System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            channel.failed(e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Channel handler failed", e);
+            channel.failed(new IOException(e));
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            runTasks();
+            long timeout = runTimers();
+            try {
+                // Timers may have submitted tasks, which don't wake us
+                if (tasks.isEmpty())
+                    selector.select(timeout);
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                Log.e(TAG, "Select failed", e);
+                continue;
+            }
+            TransportMetrics.REACTOR.count(TransportMetrics.WAKEUPS, 1);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                dispatch(key);
+            }
+        }
+    }
+}
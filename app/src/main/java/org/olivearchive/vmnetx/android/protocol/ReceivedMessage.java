@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.charset.Charset;
+
+import net.asdfa.msgpack.InvalidMsgPackDataException;
+import net.asdfa.msgpack.MsgPack;
+
+import org.olivearchive.vmnetx.android.Constants;
+
+// Base class for typed incoming messages.  Each subclass lists its wire
+// field names, in order, and decodes the value of field i straight into
+// a Java field, so a message goes from the frame to primitive fields
+// without building a Map or boxing anything.
+abstract class ReceivedMessage {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // The wire field names of one message class, in order, and their
+    // encodings, so keys can be matched without decoding them
+    static final class Fields {
+        private final String[] names;
+        private final byte[][] keys;
+
+        Fields(String... names) {
+            this.names = names;
+            keys = new byte[names.length][];
+            for (int i = 0; i < names.length; i++)
+                keys[i] = names[i].getBytes(UTF8);
+        }
+    }
+
+    final String mtype;
+    private final Fields fields;
+    private final int required;
+
+    // Only valid during decode()
+    private MsgPack.Reader reader;
+    private int field;
+
+    // Bit i of required is set if field i must be present and non-nil.
+    protected ReceivedMessage(String mtype, Fields fields, int required) {
+        this.mtype = mtype;
+        this.fields = fields;
+        this.required = required;
+    }
+
+    // Reads the fields that follow the message type.
+    void decode(MessageReader in) throws ProtocolException {
+        int seen = 0;
+        reader = in.getReader();
+        try {
+            while (in.nextField()) {
+                field = indexOf(reader);
+                if (field == -1) {
+                    reader.skipValue();
+                    continue;
+                }
+                // A nil value counts as absent
+                if (reader.next() == MsgPack.Token.NULL)
+                    continue;
+                decodeField(field);
+                seen |= 1 << field;
+            }
+        } catch (InvalidMsgPackDataException e) {
+            throw new ProtocolException("MessagePack decode failure", e);
+        } finally {
+            reader = null;
+        }
+
+        int missing = required & ~seen;
+        if (missing != 0)
+            throw new ProtocolException("Missing required value " + fields.names[Integer.numberOfTrailingZeros(missing)] + " in message " + mtype);
+    }
+
+    // Stores the current value, which is known not to be nil, in the
+    // field with the given index.
+    protected abstract void decodeField(int field) throws ProtocolException;
+
+    protected String readString() throws ProtocolException {
+        if (reader.getToken() != MsgPack.Token.STRING)
+            throw invalidType();
+        return reader.getString();
+    }
+
+    // Integers may arrive in any wire encoding; accept any value that
+    // fits in an int.
+    protected int readInt() throws ProtocolException {
+        if (reader.getToken() != MsgPack.Token.INT)
+            throw invalidType();
+        try {
+            return reader.getInt();
+        } catch (ArithmeticException e) {
+            throw invalidType();
+        }
+    }
+
+    // Likewise accept floats and integers where a double is expected.
+    protected double readDouble() throws ProtocolException {
+        MsgPack.Token token = reader.getToken();
+        if (token != MsgPack.Token.FLOAT && token != MsgPack.Token.INT)
+            throw invalidType();
+        return reader.getDouble();
+    }
+
+    protected boolean readBoolean() throws ProtocolException {
+        if (reader.getToken() != MsgPack.Token.BOOLEAN)
+            throw invalidType();
+        return reader.getBoolean();
+    }
+
+    protected int readVmState() throws ProtocolException {
+        if (reader.getToken() != MsgPack.Token.STRING)
+            throw invalidType();
+        if (reader.matches("stopped"))
+            return Constants.VM_STATE_STOPPED;
+        else if (reader.matches("starting"))
+            return Constants.VM_STATE_STARTING;
+        else if (reader.matches("running"))
+            return Constants.VM_STATE_RUNNING;
+        else if (reader.matches("stopping"))
+            return Constants.VM_STATE_STOPPING;
+        else
+            return Constants.VM_STATE_UNKNOWN;
+    }
+
+    private ProtocolException invalidType() {
+        return new ProtocolException("Invalid type for field " + fields.names[field] + " in message " + mtype);
+    }
+
+    private int indexOf(MsgPack.Reader key) {
+        for (int i = 0; i < fields.keys.length; i++) {
+            if (key.matches(fields.keys[i]))
+                return i;
+        }
+        return -1;
+    }
+}
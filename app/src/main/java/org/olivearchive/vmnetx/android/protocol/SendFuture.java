@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// The fate of an outgoing message.  get() returns true once the message
+// has been written to the socket, or false if it was refused because the
+// send queue was full or dropped because the connection closed.
+public final class SendFuture implements Future<Boolean> {
+    // Called on the reactor thread, or on the sender's thread if the
+    // message was refused outright.
+    public interface Listener {
+        void onSendComplete(SendFuture future, boolean sent);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SENT = 1;
+    private static final int FAILED = 2;
+
+    private int state = PENDING;
+    private Listener listener;
+
+    static SendFuture failed() {
+        SendFuture future = new SendFuture();
+        future.complete(false);
+        return future;
+    }
+
+    // Runs now if the message has already been dealt with.
+    public void setListener(Listener listener) {
+        boolean sent;
+        synchronized (this) {
+            if (state == PENDING) {
+                this.listener = listener;
+                return;
+            }
+            sent = state == SENT;
+        }
+        listener.onSendComplete(this, sent);
+    }
+
+    void complete(boolean sent) {
+        Listener listener;
+        synchronized (this) {
+            if (state != PENDING)
+                return;
+            state = sent ? SENT : FAILED;
+            listener = this.listener;
+            this.listener = null;
+            notifyAll();
+        }
+        if (listener != null)
+            listener.onSendComplete(this, sent);
+    }
+
+    // True if the message was refused or dropped
+    public synchronized boolean isFailed() {
+        return state == FAILED;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized Boolean get() throws InterruptedException {
+        while (state == PENDING)
+            wait();
+        return state == SENT;
+    }
+
+    @Override
+    public synchronized Boolean get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return state == SENT;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Outgoing frames waiting for the socket.  Each priority has its own
+// bounded lane, and lower-numbered priorities are always sent first, so
+// commands overtake keepalives on a slow link.  A full lane refuses new
+// frames instead of growing, and at most one keepalive is queued at a
+// time: a stalled link shouldn't build up a backlog of stale traffic to
+// replay when it recovers.  Any thread may add; only the reactor thread
+// removes.
+final class SendQueue {
+    static final int PRIORITY_CONTROL = 0;
+    static final int PRIORITY_KEEPALIVE = 1;
+    private static final int PRIORITIES = 2;
+
+    // Lane capacities, by priority
+    private static final int[] CAPACITY = {32, 1};
+
+    private static final class Entry {
+        final ByteBuffer frame;
+        final SendFuture future;
+
+        Entry(ByteBuffer frame, SendFuture future) {
+            this.frame = frame;
+            this.future = future;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Entry>[] lanes = new ArrayDeque[PRIORITIES];
+    private int size;
+    private boolean closed;
+
+    SendQueue() {
+        for (int i = 0; i < PRIORITIES; i++)
+            lanes[i] = new ArrayDeque<Entry>(CAPACITY[i]);
+    }
+
+    // Returns the future for the frame.  If the lane is full or the queue
+    // is closed, the frame is released and the future has already failed,
+    // except that a keepalive is folded into the one already queued and
+    // gets its future.
+    SendFuture offer(ByteBuffer frame, int priority) {
+        synchronized (this) {
+            ArrayDeque<Entry> lane = lanes[priority];
+            if (!closed && lane.size() < CAPACITY[priority]) {
+                SendFuture future = new SendFuture();
+                lane.add(new Entry(frame, future));
+                size++;
+                return future;
+            }
+            if (!closed && priority == PRIORITY_KEEPALIVE) {
+                BufferPool.get().release(frame);
+                return lane.peekLast().future;
+            }
+        }
+        BufferPool.get().release(frame);
+        return SendFuture.failed();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Moves up to count frames, highest priority first, into frames and
+    // their futures into futures, starting at offset.  Returns the number
+    // moved.
+    synchronized int poll(ByteBuffer[] frames, SendFuture[] futures,
+            int offset, int count) {
+        int moved = 0;
+        for (int i = 0; i < PRIORITIES && moved < count; i++) {
+            ArrayDeque<Entry> lane = lanes[i];
+            while (moved < count && !lane.isEmpty()) {
+                Entry entry = lane.poll();
+                frames[offset + moved] = entry.frame;
+                futures[offset + moved] = entry.future;
+                moved++;
+            }
+        }
+        size -= moved;
+        return moved;
+    }
+
+    // Empties the queue, failing every future, and refuses any more frames.
+    void close() {
+        ArrayDeque<Entry> dropped = new ArrayDeque<Entry>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<Entry> lane : lanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+            size = 0;
+        }
+        for (Entry entry : dropped) {
+            BufferPool.get().release(entry.frame);
+            entry.future.complete(false);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+
+import net.asdfa.msgpack.BufferPacker;
+
+// Base class for typed outgoing messages with fields.  Each subclass
+// names its wire fields, in order, in a shared MessageTemplate, and
+// encodes the value of field i straight from a Java field, so a message
+// goes from primitive fields to the frame without building a Map or
+// boxing anything.
+abstract class SentMessage {
+    private final MessageTemplate template;
+
+    protected SentMessage(MessageTemplate template) {
+        this.template = template;
+    }
+
+    // Returns a frame ready to be passed to ConnectionProcessor.send().
+    ByteBuffer encode() {
+        BufferPacker packer = template.begin();
+        for (int i = 0; i < template.getFieldCount(); i++) {
+            template.putKey(packer, i);
+            encodeField(packer, i);
+        }
+        return packer.endFrame();
+    }
+
+    // Packs the value of the given field.
+    protected abstract void encodeField(BufferPacker packer, int field);
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2014-2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+// A length-prefixed message connection driven by the shared Reactor.
+// Everything but the public entry points runs on the reactor thread.
+abstract class StreamConnectionProcessor extends ConnectionProcessor
+        implements Reactor.Channel {
+    static private final String TAG = "StreamConnectionProcessor";
+
+    static private final int HEADER_SIZE = 4;
+    static private final int MAX_MESSAGE_SIZE = 1 << 20;
+    // Most frames handed to a single gathering write
+    static private final int MAX_GATHER = 16;
+
+    protected final Connector connector;
+    protected final Reactor reactor;
+    protected final TransportMetrics metrics;
+    // Only read what the current frame needs, so nothing after the
+    // last frame we handle is taken off the socket
+    private final boolean exactReads;
+    private final SendQueue sendQueue = new SendQueue();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    private ProtocolEndpoint endpoint;
+    private volatile long coalesceNanos = 0;
+
+    // Reactor thread private state
+    private Connector.Attempt attempt;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected = false;
+    private boolean closed = false;
+    private long startedAt;
+    // Frames being written, in gather[gatherStart..gatherEnd)
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final SendFuture[] gatherFutures = new SendFuture[MAX_GATHER];
+    private int gatherStart = 0;
+    private int gatherEnd = 0;
+    // Fires when coalesced frames must be sent
+    private Reactor.Timer coalesceTimer;
+    // The window has closed; send until the queue is empty
+    private boolean windowClosed = false;
+    // Received bytes not yet dispatched, in fill mode between reads.
+    // May hold several frames and the start of the next one.
+    private ByteBuffer recvBuf;
+    // View of recvBuf that frames are dispatched through.  Not read-only,
+    // since the decoder only takes its fast paths on buffers whose array
+    // it can reach; nothing writes through it.
+    private ByteBuffer recvView;
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flushPending.set(false);
+            if (!connected || closed)
+                return;
+            try {
+                trySend();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    };
+
+    private final Runnable closer = new Runnable() {
+        @Override
+        public void run() {
+            shutdown();
+        }
+    };
+
+    StreamConnectionProcessor(Connector connector, boolean exactReads,
+            TransportMetrics metrics) throws IOException {
+        this.connector = connector;
+        this.exactReads = exactReads;
+        this.metrics = metrics;
+        reactor = Reactor.get();
+    }
+
+    @Override
+    void setEndpoint(ProtocolEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    SendFuture send(ByteBuffer frame, int priority) {
+        SendFuture future = sendQueue.offer(frame, priority);
+        if (!future.isDone() && !flushPending.getAndSet(true))
+            reactor.submit(flusher);
+        return future;
+    }
+
+    // Holds queued frames for up to the given time, so that a burst of
+    // messages goes out in one write and, with luck, one TCP segment.
+    // Zero, the default, sends every frame as soon as possible.  A full
+    // batch of frames is sent without waiting for the window to close.
+    public void setCoalesceWindow(long millis) {
+        coalesceNanos = millis * 1000000;
+    }
+
+    // Starts connecting.  The endpoint hears about the outcome.
+    public void start() {
+        final long now = System.nanoTime();
+        // The attempt may finish as soon as it exists, so it's recorded
+        // on the thread that runs its callback
+        reactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (closed)
+                    return;
+                startedAt = now;
+                attempt = connector.connect(reactor, metrics.getName(), new Connector.Callback() {
+                    @Override
+                    public void connected(SocketChannel channel, SelectionKey key)
+                            throws IOException {
+                        attempt = null;
+                        StreamConnectionProcessor.this.channel = channel;
+                        StreamConnectionProcessor.this.key = key;
+                        key.attach(StreamConnectionProcessor.this);
+                        key.interestOps(SelectionKey.OP_READ);
+                        StreamConnectionProcessor.this.connected();
+                    }
+
+                    @Override
+                    public void failed(IOException e) {
+                        attempt = null;
+                        StreamConnectionProcessor.this.failed(e);
+                    }
+                });
+            }
+        });
+    }
+
+    public void close() {
+        reactor.submit(closer);
+    }
+
+    private void connected() throws IOException {
+        connected = true;
+        metrics.count(TransportMetrics.CONNECTS, 1);
+        metrics.record(TransportMetrics.CONNECT_NANOS, System.nanoTime() - startedAt);
+        setRecvBuf(BufferPool.getReceive().acquire());
+        endpoint.connected();
+        trySend();
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable())
+            tryRecv();
+        if (!closed && key.isValid() && key.isWritable())
+            trySend();
+    }
+
+    @Override
+    public void failed(IOException e) {
+        if (closed)
+            return;
+        Log.e(TAG, "Connection error", e);
+        metrics.count(TransportMetrics.ERRORS, 1);
+        shutdown();
+    }
+
+    // Closes the connection and tells the endpoint.
+    protected void shutdown() {
+        if (release())
+            return;
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {}
+        endpoint.disconnected();
+    }
+
+    // Stops handling the socket without closing it, and returns it.
+    // The caller is responsible for the socket from now on.
+    protected SocketChannel detach() {
+        if (release())
+            return null;
+        return channel;
+    }
+
+    // Returns true if we were already closed.
+    private boolean release() {
+        if (closed)
+            return true;
+        closed = true;
+        if (attempt != null)
+            attempt.cancel();
+        if (key != null)
+            key.cancel();
+        if (coalesceTimer != null)
+            coalesceTimer.cancel();
+        for (int i = gatherStart; i < gatherEnd; i++) {
+            BufferPool.get().release(gather[i]);
+            gatherFutures[i].complete(false);
+            gather[i] = null;
+            gatherFutures[i] = null;
+        }
+        gatherStart = gatherEnd = 0;
+        sendQueue.close();
+        if (recvBuf != null)
+            BufferPool.getReceive().release(recvBuf);
+        recvBuf = null;
+        recvView = null;
+        return false;
+    }
+
+    private void trySend() throws IOException {
+        while (true) {
+            if (gatherStart == gatherEnd) {
+                gatherStart = gatherEnd = 0;
+                if (coalesce())
+                    break;
+                metrics.record(TransportMetrics.QUEUE_DEPTH, sendQueue.size());
+                gatherEnd = sendQueue.poll(gather, gatherFutures, 0, MAX_GATHER);
+                if (gatherEnd == 0)
+                    break;
+            }
+
+            // One syscall for the whole batch
+            long written = channel.write(gather, gatherStart, gatherEnd - gatherStart);
+            metrics.count(TransportMetrics.WRITES, 1);
+            metrics.count(TransportMetrics.BYTES_OUT, written);
+            while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                metrics.count(TransportMetrics.FRAMES_OUT, 1);
+                BufferPool.get().release(gather[gatherStart]);
+                gatherFutures[gatherStart].complete(true);
+                gather[gatherStart] = null;
+                gatherFutures[gatherStart++] = null;
+            }
+            if (gatherStart < gatherEnd) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Returns true if queued frames should wait for the coalescing
+    // window to close, in which case a timer will send them.
+    private boolean coalesce() {
+        long window = coalesceNanos;
+        int queued = sendQueue.size();
+        if (queued == 0)
+            // The next frame opens a new window
+            windowClosed = false;
+        if (window == 0 || queued == 0 || queued >= MAX_GATHER || windowClosed) {
+            if (coalesceTimer != null) {
+                coalesceTimer.cancel();
+                coalesceTimer = null;
+            }
+            return false;
+        }
+        if (coalesceTimer == null) {
+            coalesceTimer = reactor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    coalesceTimer = null;
+                    windowClosed = true;
+                    flusher.run();
+                }
+            }, window);
+            return true;
+        }
+        // Still waiting
+        return true;
+    }
+
+    private void tryRecv() throws IOException {
+        while (!closed) {
+            // Read as much as is available, or as the current frame
+            // needs
+            if (exactReads)
+                recvBuf.limit(frameEnd());
+            int count = channel.read(recvBuf);
+            metrics.count(TransportMetrics.READS, 1);
+            if (count == -1) {
+                // Connection closed
+                shutdown();
+                return;
+            }
+            if (count == 0)
+                return;
+            metrics.count(TransportMetrics.BYTES_IN, count);
+
+            // Dispatch every complete frame, then move any partial one
+            // to the start of the buffer
+            recvBuf.flip();
+            dispatchFrames();
+            if (closed)
+                return;
+            recvBuf.compact();
+
+            // Give back a buffer grown for an oversize frame once it's
+            // drained
+            if (recvBuf.position() == 0 &&
+                    recvBuf.capacity() > BufferPool.RECEIVE_BUFFER_SIZE)
+                setRecvBuf(BufferPool.getReceive().acquire());
+        }
+    }
+
+    // recvBuf is in fill mode.  Returns the offset just past the end of
+    // the frame being received, or of its header if that hasn't arrived.
+    private int frameEnd() {
+        if (recvBuf.position() < HEADER_SIZE)
+            return HEADER_SIZE;
+        // Validated when the header arrived
+        return HEADER_SIZE + recvBuf.getInt(0);
+    }
+
+    // recvBuf is in drain mode.  On return its position is at the first
+    // byte of the first incomplete frame, and it is large enough to
+    // receive the rest of that frame.
+    private void dispatchFrames() throws ProtocolException {
+        while (recvBuf.remaining() >= HEADER_SIZE) {
+            int start = recvBuf.position();
+            int length = recvBuf.getInt(start);
+            if (length < 0 || length > MAX_MESSAGE_SIZE)
+                throw new ProtocolException("Received oversize message of length " + Integer.toString(length));
+            if (recvBuf.remaining() - HEADER_SIZE < length) {
+                ensureRecvCapacity(HEADER_SIZE + length);
+                return;
+            }
+
+            // Process data in place
+            int end = start + HEADER_SIZE + length;
+            recvView.limit(end);
+            recvView.position(start + HEADER_SIZE);
+            long dispatchStart = System.nanoTime();
+            endpoint.dispatch(recvView);
+            metrics.count(TransportMetrics.FRAMES_IN, 1);
+            metrics.record(TransportMetrics.DISPATCH_NANOS, System.nanoTime() - dispatchStart);
+            // The handler may have closed or detached us
+            if (closed)
+                return;
+            recvBuf.position(end);
+        }
+    }
+
+    private void ensureRecvCapacity(int size) {
+        if (size <= recvBuf.capacity())
+            return;
+        // Resize to next larger power of 2, keeping the partial frame
+        ByteBuffer buf = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        buf.put(recvBuf);
+        buf.flip();
+        setRecvBuf(buf);
+    }
+
+    private void setRecvBuf(ByteBuffer buf) {
+        if (recvBuf != null)
+            BufferPool.getReceive().release(recvBuf);
+        recvBuf = buf;
+        recvView = buf.duplicate();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+// Process-wide counters and distributions for one kind of connection, or
+// for the Reactor itself.  Everything is recorded on the reactor thread,
+// so recording needs no locks; snapshot() may be called from anywhere.
+// Viewer figures cover only the handshake, since the socket belongs to
+// SPICE afterward.
+public final class TransportMetrics {
+    private static final String TAG = "TransportMetrics";
+
+    // Counters
+    public static final int BYTES_IN = 0;
+    public static final int BYTES_OUT = 1;
+    public static final int FRAMES_IN = 2;
+    public static final int FRAMES_OUT = 3;
+    // read() and write() calls
+    public static final int READS = 4;
+    public static final int WRITES = 5;
+    public static final int CONNECTS = 6;
+    // Connections that ended with an error
+    public static final int ERRORS = 7;
+    // Reactor only: returns from select()
+    public static final int WAKEUPS = 8;
+    private static final String[] COUNTER_NAMES = {
+        "bytes_in", "bytes_out", "frames_in", "frames_out", "reads",
+        "writes", "connects", "errors", "wakeups",
+    };
+
+    // Histograms
+    // Frames waiting each time the send queue is drained
+    public static final int QUEUE_DEPTH = 0;
+    // Handling one received frame, in ns
+    public static final int DISPATCH_NANOS = 1;
+    // Handshake phases, in ns: connect() to connected, authenticate to
+    // auth-ok, attach-viewer to attaching-viewer
+    public static final int CONNECT_NANOS = 2;
+    public static final int AUTH_NANOS = 3;
+    public static final int ATTACH_NANOS = 4;
+    // Reactor only: handling one ready channel, in ns
+    public static final int READY_NANOS = 5;
+    private static final String[] HISTOGRAM_NAMES = {
+        "queue_depth", "dispatch_us", "connect_ms", "auth_ms", "attach_ms",
+        "ready_us",
+    };
+    // Divisors for the log dump
+    private static final long[] HISTOGRAM_SCALES = {
+        1, 1000, 1000000, 1000000, 1000000, 1000,
+    };
+
+    static final TransportMetrics CONTROL = new TransportMetrics("control");
+    static final TransportMetrics VIEWER = new TransportMetrics("viewer");
+    static final TransportMetrics REACTOR = new TransportMetrics("reactor");
+    private static final TransportMetrics[] ALL = {CONTROL, VIEWER, REACTOR};
+
+    // Reactor thread only
+    private static Reactor.Timer logTimer;
+
+    private final String name;
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final Histogram[] histograms = new Histogram[HISTOGRAM_NAMES.length];
+
+    private TransportMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new Histogram();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static TransportMetrics getControl() {
+        return CONTROL;
+    }
+
+    public static TransportMetrics getViewer() {
+        return VIEWER;
+    }
+
+    public static TransportMetrics getReactor() {
+        return REACTOR;
+    }
+
+    // Reactor thread only
+    void count(int counter, long delta) {
+        counters.lazySet(counter, counters.get(counter) + delta);
+    }
+
+    // Reactor thread only
+    void record(int histogram, long value) {
+        histograms[histogram].record(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] values = new long[COUNTER_NAMES.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = counters.get(i);
+        Histogram.Snapshot[] distributions = new Histogram.Snapshot[histograms.length];
+        for (int i = 0; i < distributions.length; i++)
+            distributions[i] = histograms[i].snapshot();
+        return new Snapshot(name, values, distributions);
+    }
+
+    // Logs every snapshot now and then until stopLogging().
+    public static void startLogging(final long intervalMillis) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (logTimer != null)
+                    logTimer.cancel();
+                final Reactor reactor = reactor();
+                logTimer = reactor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (TransportMetrics metrics : ALL)
+                            Log.i(TAG, metrics.snapshot().toString());
+                        logTimer = reactor.schedule(this, intervalMillis * 1000000);
+                    }
+                }, intervalMillis * 1000000);
+            }
+        });
+    }
+
+    public static void stopLogging() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (logTimer != null)
+                    logTimer.cancel();
+                logTimer = null;
+            }
+        });
+    }
+
+    private static Reactor reactor() {
+        try {
+            return Reactor.get();
+        } catch (IOException e) {
+            // Nothing to log if the reactor can't run
+            return null;
+        }
+    }
+
+    private static void submit(Runnable task) {
+        Reactor reactor = reactor();
+        if (reactor != null)
+            reactor.submit(task);
+    }
+
+    public static final class Snapshot {
+        private final String name;
+        private final long[] counters;
+        private final Histogram.Snapshot[] histograms;
+
+        private Snapshot(String name, long[] counters,
+                Histogram.Snapshot[] histograms) {
+            this.name = name;
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        public long getCounter(int counter) {
+            return counters[counter];
+        }
+
+        public Histogram.Snapshot getHistogram(int histogram) {
+            return histograms[histogram];
+        }
+
+        // Syscalls per frame, in each direction.  0 if no frames.
+        public double getReadsPerFrame() {
+            return ratio(counters[READS], counters[FRAMES_IN]);
+        }
+
+        public double getWritesPerFrame() {
+            return ratio(counters[WRITES], counters[FRAMES_OUT]);
+        }
+
+        private static double ratio(long a, long b) {
+            return b == 0 ? 0 : (double) a / b;
+        }
+
+        // Nonzero figures only
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name);
+            for (int i = 0; i < counters.length; i++) {
+                if (counters[i] != 0)
+                    sb.append(' ').append(COUNTER_NAMES[i]).append('=').append(counters[i]);
+            }
+            if (counters[FRAMES_IN] != 0)
+                sb.append(String.format(" reads/frame=%.2f", getReadsPerFrame()));
+            if (counters[FRAMES_OUT] != 0)
+                sb.append(String.format(" writes/frame=%.2f", getWritesPerFrame()));
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i].getCount() != 0)
+                    sb.append(" [").append(HISTOGRAM_NAMES[i]).append(' ')
+                            .append(histograms[i].format(HISTOGRAM_SCALES[i]))
+                            .append(']');
+            }
+            return sb.toString();
+        }
+    }
+}
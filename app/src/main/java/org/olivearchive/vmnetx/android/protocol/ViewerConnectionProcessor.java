@@ -13,117 +13,167 @@
 
 package org.olivearchive.vmnetx.android.protocol;
 
-import android.os.Bundle;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import org.olivearchive.vmnetx.android.Constants;
 
-public class ViewerConnectionProcessor extends ConnectionProcessor {
+// Runs the viewer handshake on a new socket, then hands the socket over
+// as a file descriptor.  The handshake runs on the shared Reactor, so
+// any number of them can be in progress without extra threads.
+public class ViewerConnectionProcessor extends StreamConnectionProcessor {
     private static final String TAG = "ViewerConnectionProcessor";
 
     private static final int CONNECT_CONTINUE = 0;
     private static final int CONNECT_DONE = 1;
     private static final int CONNECT_FAILED = 2;
 
-    private native void Connect(String host, String port);
-    private native void SendMessage(int fd, byte[] data);
+    // Called on the reactor thread when the handshake finishes.
+    public interface Callback {
+        // The caller now owns fd.
+        void onViewerConnected(int fd);
+        void onViewerFailed();
+    }
 
-    private final String host;
-    private final String port;
     private final String token;
     private final ClientProtocolEndpoint endpoint;
+    private final boolean pipelined;
+    private Callback callback;
     private int state = CONNECT_CONTINUE;
-    private int fd = -1;
+    // A pipelined handshake failed after auth-ok, so retry without
+    // pipelining
+    private boolean retrySerial = false;
+
+    // Callbacks from ProtocolEndpoint
+    private class ViewerListener extends ProtocolListener.Adapter {
+        // Pipelined auth succeeded and attach-viewer is outstanding
+        private boolean authenticated = false;
 
-    private class ViewerMessageProcessor
-            implements ProtocolEndpoint.MessageProcessor {
         @Override
-        public void processMessage(int what, Bundle args) {
-            // callback from ProtocolEndpoint
-            switch (what) {
-            case Constants.PROTOCOL_CONNECTED:
+        public void onConnected() {
+            if (pipelined)
+                endpoint.sendAuthenticateAndAttachViewer(token);
+            else
                 endpoint.sendAuthenticate(token);
-                break;
-
-            case Constants.CLIENT_PROTOCOL_AUTH_OK:
-                int vmState = args.getInt(Constants.ARG_VM_STATE);
-                if (vmState != Constants.VM_STATE_RUNNING) {
-                    Log.e(TAG, "Server in unexpected state " + Integer.toString(vmState));
-                    transition(CONNECT_FAILED);
-                } else {
-                    endpoint.sendAttachViewer();
-                }
-                break;
-
-            case Constants.CLIENT_PROTOCOL_AUTH_FAILED:
-                Log.e(TAG, "Viewer auth failed: " + args.getString(Constants.ARG_ERROR));
+        }
+
+        @Override
+        public void onAuthOk(int vmState, String name, int maxMouseRate,
+                int serverTimeoutMin, int serverTimeoutMax) {
+            if (vmState != Constants.VM_STATE_RUNNING) {
+                Log.e(TAG, "Server in unexpected state " + Integer.toString(vmState));
                 transition(CONNECT_FAILED);
-                break;
+            } else if (!pipelined) {
+                endpoint.sendAttachViewer();
+            } else {
+                authenticated = true;
+            }
+        }
 
-            case Constants.CLIENT_PROTOCOL_ATTACHING_VIEWER:
-                transition(CONNECT_DONE);
-                break;
+        @Override
+        public void onAuthFailed(String error) {
+            Log.e(TAG, "Viewer auth failed: " + error);
+            transition(CONNECT_FAILED);
+        }
 
-            case Constants.PROTOCOL_ERROR:
-                Log.e(TAG, "Protocol error: " + args.getString(Constants.ARG_ERROR));
-                transition(CONNECT_FAILED);
-                break;
+        @Override
+        public void onAttachingViewer() {
+            transition(CONNECT_DONE);
+        }
 
-            default:
-                Log.e(TAG, "Ignored message " + Integer.toString(what));
-                break;
-            }
+        @Override
+        public void onError(String error) {
+            Log.e(TAG, "Protocol error: " + error);
+            if (authenticated)
+                retrySerial = true;
+            transition(CONNECT_FAILED);
         }
-    }
 
-    public ViewerConnectionProcessor(String host, String port, String token) {
-        this.host = host;
-        this.port = port;
-        this.token = token;
-        endpoint = new ClientProtocolEndpoint(this,
-                new ViewerMessageProcessor());
+        @Override
+        public void onDisconnected() {
+            // Closed before the handshake finished, either by the
+            // server or by transition()
+            if (state == CONNECT_CONTINUE && authenticated)
+                retrySerial = true;
+            state = CONNECT_FAILED;
+            if (retrySerial)
+                fallBack();
+            else
+                callback.onViewerFailed();
+        }
     }
 
-    @Override
-    void setEndpoint(ProtocolEndpoint endpoint) {}
+    public ViewerConnectionProcessor(String host, int port, String token)
+            throws IOException {
+        this(new Connector(host, port), token);
+    }
 
-    @Override
-    void send(byte[] data) {
-        if (fd != -1 && state == CONNECT_CONTINUE)
-            SendMessage(fd, data);
-        else
-            throw new IllegalStateException("Connection not available for sending");
+    public ViewerConnectionProcessor(Connector connector, String token)
+            throws IOException {
+        this(connector, token, connector.getPipelineViewerHandshake());
     }
 
-    public int connect() throws ProtocolException {
-        if (state != CONNECT_CONTINUE)
-            throw new IllegalStateException("Cannot reuse ViewerConnectionProcessor objects");
-        Log.d(TAG, "Connect " + host + ":" + port);
-        Connect(host, port);
-        if (state != CONNECT_DONE)
-            throw new ProtocolException("Could not establish connection");
-        return fd;
+    private ViewerConnectionProcessor(Connector connector, String token,
+            boolean pipelined) throws IOException {
+        // Don't read past attaching-viewer; what follows belongs to SPICE
+        super(connector, true, TransportMetrics.VIEWER);
+        this.token = token;
+        this.pipelined = pipelined;
+        endpoint = new ClientProtocolEndpoint(this, new ViewerListener());
     }
 
-    private void OnConnect(int fd) {
-        // callback from JNI
-        this.fd = fd;
-        endpoint.connected();
+    public void connect(Callback callback) {
+        if (this.callback != null)
+            throw new IllegalStateException("Cannot reuse ViewerConnectionProcessor objects");
+        this.callback = callback;
+        Log.d(TAG, "Connect " + connector.getHost() + ":" + Integer.toString(connector.getPort()));
+        start();
     }
 
-    private int OnReceiveMessage(byte[] data) {
-        // callback from JNI
+    // The server didn't accept attach-viewer before auth-ok.  Stop
+    // pipelining for this session and redo the handshake one step at a
+    // time on a new connection.
+    private void fallBack() {
+        Log.w(TAG, "Pipelined viewer handshake failed; retrying without pipelining");
+        connector.setPipelineViewerHandshake(false);
         try {
-            endpoint.dispatch(data);
-        } catch (ProtocolException e) {
-            Log.e(TAG, "Dispatch error", e);
-            transition(CONNECT_FAILED);
+            new ViewerConnectionProcessor(connector, token, false).connect(callback);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't retry viewer connection", e);
+            callback.onViewerFailed();
         }
-        return state;
     }
 
     private void transition(int state) {
-        if (this.state == CONNECT_CONTINUE)
-            this.state = state;
+        if (this.state != CONNECT_CONTINUE)
+            return;
+        if (state == CONNECT_FAILED) {
+            shutdown();
+            return;
+        }
+        this.state = state;
+        int fd = detachFd();
+        if (fd == -1)
+            callback.onViewerFailed();
+        else
+            callback.onViewerConnected(fd);
+    }
+
+    private int detachFd() {
+        SocketChannel channel = detach();
+        // Duplicate the descriptor before closing the channel, so the
+        // selector deregisters the original while it is still open
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.fromSocket(channel.socket());
+        try {
+            channel.close();
+        } catch (IOException e) {}
+        if (pfd == null) {
+            Log.e(TAG, "Couldn't get viewer socket descriptor");
+            return -1;
+        }
+        return pfd.detachFd();
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+// Viewer sockets that have finished the handshake ahead of time, so that
+// a SPICE channel asking for one gets it at once.  warm() opens enough
+// sockets to fill the pool and keeps it topped up for a while; outside
+// that period sockets are only opened on request.  A socket that waits
+// too long is closed, since the server may have given up on it.
+public final class ViewerPool {
+    private static final String TAG = "ViewerPool";
+
+    // main, display, inputs, cursor, playback
+    static private final int DEFAULT_SIZE = 5;
+    static private final int DEFAULT_MAX_AGE_MS = 15000;
+    static private final int DEFAULT_WARM_PERIOD_MS = 30000;
+
+    private static final class ReadySocket {
+        final int fd;
+        final long readyAt;
+
+        ReadySocket(int fd, long readyAt) {
+            this.fd = fd;
+            this.readyAt = readyAt;
+        }
+    }
+
+    private final Connector connector;
+    private final String token;
+    private final Reactor reactor;
+    private int size = DEFAULT_SIZE;
+    private long maxAgeNanos = DEFAULT_MAX_AGE_MS * 1000000L;
+    private long warmPeriodNanos = DEFAULT_WARM_PERIOD_MS * 1000000L;
+
+    // Oldest first
+    private final ArrayDeque<ReadySocket> ready = new ArrayDeque<ReadySocket>();
+    private final ArrayDeque<ViewerConnectionProcessor.Callback> waiters =
+            new ArrayDeque<ViewerConnectionProcessor.Callback>();
+    private int inFlight = 0;
+    private long warmUntil = 0;
+    private boolean expiryScheduled = false;
+    private boolean closed = false;
+
+    private final ViewerConnectionProcessor.Callback filler =
+            new ViewerConnectionProcessor.Callback() {
+        @Override
+        public void onViewerConnected(int fd) {
+            ViewerConnectionProcessor.Callback waiter;
+            synchronized (ViewerPool.this) {
+                inFlight--;
+                if (closed) {
+                    closeFd(fd);
+                    return;
+                }
+                waiter = waiters.poll();
+                if (waiter == null) {
+                    ready.add(new ReadySocket(fd, System.nanoTime()));
+                    scheduleExpiry();
+                }
+                topUp();
+            }
+            if (waiter != null)
+                waiter.onViewerConnected(fd);
+        }
+
+        @Override
+        public void onViewerFailed() {
+            // Fail one request per failed socket, so a server that
+            // won't take connections can't make us retry forever
+            ViewerConnectionProcessor.Callback waiter;
+            synchronized (ViewerPool.this) {
+                inFlight--;
+                waiter = waiters.poll();
+            }
+            if (waiter != null)
+                waiter.onViewerFailed();
+        }
+    };
+
+    private final Runnable expirer = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ViewerPool.this) {
+                expiryScheduled = false;
+                expire();
+                scheduleExpiry();
+                topUp();
+            }
+        }
+    };
+
+    public ViewerPool(Connector connector, String token) throws IOException {
+        this.connector = connector;
+        this.token = token;
+        reactor = Reactor.get();
+    }
+
+    // How many sockets warm() keeps ready or in progress
+    public synchronized void setSize(int size) {
+        this.size = size;
+    }
+
+    // How long a ready socket is kept before it's closed
+    public synchronized void setMaxAge(int millis) {
+        maxAgeNanos = millis * 1000000L;
+    }
+
+    // How long after warm() the pool is topped up
+    public synchronized void setWarmPeriod(int millis) {
+        warmPeriodNanos = millis * 1000000L;
+    }
+
+    // Fills the pool and keeps it full for the warm period.  Call when
+    // SPICE channels are about to be requested.
+    public synchronized void warm() {
+        if (closed)
+            return;
+        warmUntil = System.nanoTime() + warmPeriodNanos;
+        topUp();
+    }
+
+    // Passes a connected viewer socket to the callback, now if one is
+    // ready or else once a handshake finishes.  The callback may run on
+    // this thread or the reactor thread.
+    public void get(ViewerConnectionProcessor.Callback callback) {
+        ReadySocket socket = null;
+        boolean failed;
+        synchronized (this) {
+            failed = closed;
+            if (!closed) {
+                expire();
+                socket = ready.poll();
+                if (socket == null) {
+                    waiters.add(callback);
+                    if (inFlight < waiters.size())
+                        open();
+                }
+                topUp();
+            }
+        }
+        if (failed)
+            callback.onViewerFailed();
+        else if (socket != null)
+            callback.onViewerConnected(socket.fd);
+    }
+
+    // Closes ready sockets, which may have been opened over a network
+    // that's gone, and opens new ones if the pool is warm.
+    public synchronized void discardReady() {
+        for (ReadySocket socket : ready)
+            closeFd(socket.fd);
+        ready.clear();
+        topUp();
+    }
+
+    // Closes ready sockets and stops opening new ones.  Sockets still in
+    // the handshake are closed when it finishes.
+    public void close() {
+        ArrayDeque<ViewerConnectionProcessor.Callback> failed;
+        synchronized (this) {
+            closed = true;
+            for (ReadySocket socket : ready)
+                closeFd(socket.fd);
+            ready.clear();
+            failed = new ArrayDeque<ViewerConnectionProcessor.Callback>(waiters);
+            waiters.clear();
+        }
+        for (ViewerConnectionProcessor.Callback waiter : failed)
+            waiter.onViewerFailed();
+    }
+
+    private void topUp() {
+        if (closed || System.nanoTime() - warmUntil >= 0)
+            return;
+        while (ready.size() + inFlight - waiters.size() < size) {
+            if (!open())
+                break;
+        }
+    }
+
+    private boolean open() {
+        try {
+            new ViewerConnectionProcessor(connector, token).connect(filler);
+            inFlight++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't start viewer connection", e);
+            // Callers waiting for a socket must hear about it
+            ViewerConnectionProcessor.Callback waiter = waiters.poll();
+            if (waiter != null)
+                waiter.onViewerFailed();
+            return false;
+        }
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        while (!ready.isEmpty() && now - ready.peek().readyAt >= maxAgeNanos)
+            closeFd(ready.poll().fd);
+    }
+
+    private void scheduleExpiry() {
+        if (expiryScheduled || ready.isEmpty())
+            return;
+        expiryScheduled = true;
+        final long delay = ready.peek().readyAt + maxAgeNanos - System.nanoTime();
+        reactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                reactor.schedule(expirer, Math.max(delay, 0));
+            }
+        });
+    }
+
+    private static void closeFd(int fd) {
+        try {
+            ParcelFileDescriptor.adoptFd(fd).close();
+        } catch (IOException e) {}
+    }
+}
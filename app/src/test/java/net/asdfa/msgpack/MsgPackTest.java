@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2016 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package net.asdfa.msgpack;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and size boundaries for the str8, bin, ext, and timestamp
+ * types, through both packers and all three unpackers.
+ */
+public class MsgPackTest {
+	private static final int STRINGS = MsgPack.UNPACK_RAW_AS_STRING;
+
+	@Test
+	public void str8DecodesAsString() throws Exception {
+		for (int size : new int[] {0, 1, 31, 32, 255}) {
+			byte[] data = new byte[2 + size];
+			data[0] = MsgPack.MP_STR8;
+			data[1] = (byte)size;
+			Arrays.fill(data, 2, data.length, (byte)'x');
+			String expected = repeat('x', size);
+			assertEquals(expected, MsgPack.unpack(data, STRINGS));
+			assertEquals(expected, MsgPack.unpack(ByteBuffer.wrap(data), STRINGS));
+			MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), STRINGS);
+			assertEquals(MsgPack.Token.STRING, reader.next());
+			assertEquals(expected, reader.getString());
+			// Without the option, str8 is raw bytes like any other raw
+			assertArrayEquals(Arrays.copyOfRange(data, 2, data.length),
+					(byte[])MsgPack.unpack(data, 0));
+		}
+	}
+
+	@Test
+	public void binHeaderBoundaries() throws Exception {
+		assertBinary(0, MsgPack.MP_BIN8);
+		assertBinary(255, MsgPack.MP_BIN8);
+		assertBinary(256, MsgPack.MP_BIN16);
+		assertBinary(65535, MsgPack.MP_BIN16);
+		assertBinary(65536, MsgPack.MP_BIN32);
+	}
+
+	private static void assertBinary(int size, byte header) throws Exception {
+		byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++)
+			payload[i] = (byte)(i * 7);
+		BufferPacker packer = new BufferPacker(ByteBuffer.allocate(16));
+		packer.packBinary(payload, 0, size);
+		byte[] data = packed(packer);
+		assertEquals(header, data[0]);
+
+		// Binary is never decoded as a string, even when asked
+		assertArrayEquals(payload, (byte[])MsgPack.unpack(data, STRINGS));
+		assertArrayEquals(payload, (byte[])MsgPack.unpack(ByteBuffer.wrap(data), STRINGS));
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), STRINGS);
+		assertEquals(MsgPack.Token.RAW, reader.next());
+		assertArrayEquals(payload, reader.getBytes());
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void extensionHeaderBoundaries() throws Exception {
+		assertExtension(1, MsgPack.MP_FIXEXT1);
+		assertExtension(2, MsgPack.MP_FIXEXT2);
+		assertExtension(4, MsgPack.MP_FIXEXT4);
+		assertExtension(8, MsgPack.MP_FIXEXT8);
+		assertExtension(16, MsgPack.MP_FIXEXT16);
+		assertExtension(0, MsgPack.MP_EXT8);
+		assertExtension(3, MsgPack.MP_EXT8);
+		assertExtension(255, MsgPack.MP_EXT8);
+		assertExtension(256, MsgPack.MP_EXT16);
+		assertExtension(65535, MsgPack.MP_EXT16);
+		assertExtension(65536, MsgPack.MP_EXT32);
+	}
+
+	private static void assertExtension(int size, byte header) throws Exception {
+		byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++)
+			payload[i] = (byte)(i * 13);
+		MsgPack.Extension ext = new MsgPack.Extension((byte)42, payload);
+
+		byte[] streamed = MsgPack.pack(ext);
+		assertEquals(header, streamed[0]);
+		byte[] data = packed(ext);
+		assertArrayEquals(streamed, data);
+
+		assertEquals(ext, MsgPack.unpack(data, 0));
+		assertEquals(ext, MsgPack.unpack(ByteBuffer.wrap(data), 0));
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), 0);
+		assertEquals(MsgPack.Token.EXTENSION, reader.next());
+		assertEquals(42, reader.getExtensionType());
+		assertEquals(ext, reader.getExtension());
+	}
+
+	@Test
+	public void timestampUsesSmallestEncoding() throws Exception {
+		// 32-bit: whole seconds up to 2^32 - 1
+		assertTimestamp(new MsgPack.Timestamp(0, 0), MsgPack.MP_FIXEXT4);
+		assertTimestamp(new MsgPack.Timestamp(0xffffffffL, 0), MsgPack.MP_FIXEXT4);
+		// 64-bit: nanoseconds, or seconds up to 2^34 - 1
+		assertTimestamp(new MsgPack.Timestamp(1, 1), MsgPack.MP_FIXEXT8);
+		assertTimestamp(new MsgPack.Timestamp(0x100000000L, 0), MsgPack.MP_FIXEXT8);
+		assertTimestamp(new MsgPack.Timestamp(0x3ffffffffL, 999999999), MsgPack.MP_FIXEXT8);
+		// 96-bit: everything else, including times before the epoch
+		assertTimestamp(new MsgPack.Timestamp(0x400000000L, 0), MsgPack.MP_EXT8);
+		assertTimestamp(new MsgPack.Timestamp(-1, 999999999), MsgPack.MP_EXT8);
+		assertTimestamp(new MsgPack.Timestamp(Long.MIN_VALUE, 0), MsgPack.MP_EXT8);
+	}
+
+	private static void assertTimestamp(MsgPack.Timestamp ts, byte header) throws Exception {
+		byte[] data = packed(ts);
+		assertEquals(header, data[0]);
+		assertArrayEquals(MsgPack.pack(ts), data);
+		assertEquals(ts, MsgPack.unpack(data, 0));
+		assertEquals(ts, MsgPack.unpack(ByteBuffer.wrap(data), 0));
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), 0);
+		assertEquals(MsgPack.Token.EXTENSION, reader.next());
+		assertEquals(ts, reader.getExtension());
+	}
+
+	@Test
+	public void timestampMillis() {
+		MsgPack.Timestamp ts = MsgPack.Timestamp.fromMillis(-1);
+		assertEquals(-1, ts.seconds);
+		assertEquals(999000000, ts.nanos);
+		assertEquals(-1, ts.toMillis());
+		assertEquals(1234567890123L, MsgPack.Timestamp.fromMillis(1234567890123L).toMillis());
+	}
+
+	@Test(expected = InvalidMsgPackDataException.class)
+	public void timestampWithBadLengthIsRejected() throws Exception {
+		MsgPack.unpack(packed(new MsgPack.Extension((byte)-1, new byte[5])), 0);
+	}
+
+	@Test(expected = InvalidMsgPackDataException.class)
+	public void timestampWithBadNanosIsRejected() throws Exception {
+		// 64-bit form with nanoseconds of 2^30 - 1
+		byte[] payload = {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xfc, 0, 0, 0, 0};
+		MsgPack.unpack(packed(new MsgPack.Extension((byte)-1, payload)), 0);
+	}
+
+	@Test
+	public void stringsDecodeOnBothPaths() throws Exception {
+		String[] values = {"", "ascii", repeat('a', 40), "caf\u00e9",
+				"\u65e5\u672c\u8a9e", "\ud83d\ude00 emoji"};
+		for (String value : values) {
+			byte[] data = packed(value);
+			assertArrayEquals(MsgPack.pack(value), data);
+			assertEquals(value, MsgPack.unpack(data, STRINGS));
+			assertEquals(value, MsgPack.unpack(ByteBuffer.wrap(data), STRINGS));
+			// Direct buffers take the non-array path
+			ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+			direct.put(data).flip();
+			assertEquals(value, MsgPack.unpack(direct, STRINGS));
+			assertEquals(value, MsgPack.unpack(data, STRINGS | MsgPack.UNPACK_INTERN_STRINGS));
+		}
+	}
+
+	@Test
+	public void readerMatchesWithoutDecoding() throws Exception {
+		String[] values = {"", "state", "caf\u00e9", "\u65e5\u672c\u8a9e"};
+		for (String value : values) {
+			for (String other : values) {
+				MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(packed(value)), STRINGS);
+				assertEquals(MsgPack.Token.STRING, reader.next());
+				assertEquals(value.equals(other), reader.matches(other));
+				assertEquals(value.equals(other), reader.matches(other.getBytes("UTF-8")));
+			}
+			MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(packed(value)), 0);
+			reader.next();
+			assertEquals(value, reader.getCanonicalString());
+		}
+	}
+
+	@Test
+	public void onlyKeysAndRegisteredStringsAreShared() throws Exception {
+		String known = MsgPack.registerString("registered-value");
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		map.put("known", new String(known.toCharArray()));
+		map.put("text", "free text from the peer");
+		byte[] data = packed(map);
+		int options = STRINGS | MsgPack.UNPACK_INTERN_STRINGS;
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		Object[] decoded = {MsgPack.unpack(data, options),
+				MsgPack.unpack(ByteBuffer.wrap(data), options),
+				MsgPack.unpack(direct, options)};
+		String key = null;
+		for (Object o : decoded) {
+			Map<?, ?> m = (Map<?, ?>)o;
+			assertSame(known, m.get("known"));
+			for (Object k : m.keySet()) {
+				if (k.equals("text")) {
+					if (key != null)
+						assertSame(key, k);
+					key = (String)k;
+				}
+			}
+		}
+		assertNotSame(((Map<?, ?>)decoded[0]).get("text"), ((Map<?, ?>)decoded[1]).get("text"));
+
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), options);
+		reader.next();
+		assertEquals(MsgPack.Token.KEY, reader.next());
+		reader.next();
+		assertSame(known, reader.getString());
+		assertSame(known, reader.getCanonicalString());
+		assertEquals(MsgPack.Token.KEY, reader.next());
+		assertSame(key, reader.getString());
+		reader.next();
+		assertNotSame(reader.getString(), reader.getString());
+		assertNotSame(reader.getCanonicalString(), reader.getCanonicalString());
+	}
+
+	@Test
+	public void readerSkipsNewTypes() throws Exception {
+		BufferPacker packer = new BufferPacker(ByteBuffer.allocate(16));
+		packer.packMapHeader(3);
+		packer.packString("bin");
+		packer.packBinary(new byte[300], 0, 300);
+		packer.packString("ext");
+		packer.pack(new MsgPack.Timestamp(1, 2));
+		packer.packString("last");
+		packer.packLong(7);
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(packed(packer)), STRINGS);
+		assertEquals(MsgPack.Token.MAP_START, reader.next());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(MsgPack.Token.KEY, reader.next());
+			reader.skipValue();
+		}
+		assertEquals(MsgPack.Token.KEY, reader.next());
+		assertEquals("last", reader.getString());
+		assertEquals(MsgPack.Token.INT, reader.next());
+		assertEquals(7, reader.getInt());
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void truncatedPayloadsAreRejected() throws Exception {
+		byte[][] values = {
+			packed(repeat('s', 40)),
+			packed(new MsgPack.Extension((byte)1, new byte[20])),
+			packed(new MsgPack.Timestamp(1, 1)),
+		};
+		for (byte[] value : values) {
+			byte[] data = Arrays.copyOf(value, value.length - 1);
+			try {
+				MsgPack.unpack(data, STRINGS);
+				fail("stream unpack accepted truncated data");
+			} catch (InvalidMsgPackDataException e) {}
+			try {
+				MsgPack.unpack(ByteBuffer.wrap(data), STRINGS);
+				fail("buffer unpack accepted truncated data");
+			} catch (InvalidMsgPackDataException e) {}
+		}
+	}
+
+	@Test
+	public void readerEnforcesLimits() throws Exception {
+		BufferPacker packer = new BufferPacker(ByteBuffer.allocate(16));
+		packer.packMapHeader(2);
+		packer.packString("a");
+		packer.packArrayHeader(1);
+		packer.packArrayHeader(0);
+		packer.packString("b");
+		packer.packBinary(new byte[100], 0, 100);
+		byte[] data = packed(packer);
+
+		// Bytes: keys plus the skipped bin
+		assertReadsWithin(data, new MsgPack.Limits(102, 100, 100), true);
+		assertReadsWithin(data, new MsgPack.Limits(101, 100, 100), false);
+		// Elements: two map entries and one array element
+		assertReadsWithin(data, new MsgPack.Limits(1000, 3, 100), true);
+		assertReadsWithin(data, new MsgPack.Limits(1000, 2, 100), false);
+		// Depth: map, array, and the empty array inside it
+		assertReadsWithin(data, new MsgPack.Limits(1000, 100, 3), true);
+		assertReadsWithin(data, new MsgPack.Limits(1000, 100, 2), false);
+	}
+
+	@Test
+	public void readerRestoresDepthAfterNestedValues() throws Exception {
+		// {"a": [[1]], "b": [[2]]} nests three deep, twice over
+		BufferPacker packer = new BufferPacker(ByteBuffer.allocate(16));
+		packer.packMapHeader(2);
+		for (int i = 1; i <= 2; i++) {
+			packer.packString(i == 1 ? "a" : "b");
+			packer.packArrayHeader(1);
+			packer.packArrayHeader(1);
+			packer.packLong(i);
+		}
+		byte[] data = packed(packer);
+		for (int maxDepth = 2; maxDepth <= 3; maxDepth++) {
+			MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), STRINGS,
+					new MsgPack.Limits(1000, 1000, maxDepth));
+			try {
+				for (int i = 0; i < 9; i++)
+					reader.next();
+				assertFalse(reader.hasNext());
+				assertEquals(3, maxDepth);
+			} catch (InvalidMsgPackDataException e) {
+				assertEquals(2, maxDepth);
+			}
+		}
+	}
+
+	private static void assertReadsWithin(byte[] data, MsgPack.Limits limits, boolean fits) throws Exception {
+		MsgPack.Reader reader = new MsgPack.Reader(ByteBuffer.wrap(data), STRINGS, limits);
+		// Twice, since reset() must restore the whole budget
+		for (int pass = 0; pass < 2; pass++) {
+			reader.reset();
+			try {
+				reader.next();
+				reader.next();
+				reader.next();
+				reader.next();
+				reader.next();
+				reader.skipValue();
+				assertFalse(reader.hasNext());
+				assertTrue("data exceeding the limits was read", fits);
+			} catch (InvalidMsgPackDataException e) {
+				assertFalse("data within the limits was rejected", fits);
+			}
+		}
+		// unpack() charges the same things
+		try {
+			MsgPack.unpack(ByteBuffer.wrap(data), STRINGS, limits);
+			assertTrue("unpack() read data exceeding the limits", fits);
+		} catch (InvalidMsgPackDataException e) {
+			assertFalse("unpack() rejected data within the limits", fits);
+		}
+	}
+
+	private static byte[] packed(Object item) {
+		BufferPacker packer = new BufferPacker(ByteBuffer.allocate(16));
+		packer.pack(item);
+		return packed(packer);
+	}
+
+	private static byte[] packed(BufferPacker packer) {
+		ByteBuffer buf = packer.getBuffer();
+		buf.flip();
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return data;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+    // Delays are random, so check many of them against their bounds
+    private static final int SAMPLES = 1000;
+
+    @Test
+    public void boundDoublesUpToCap() {
+        long[] bounds = {100, 200, 400, 800, 1600, 3200, 5000, 5000};
+        Backoff backoff = new Backoff(100, 5000);
+        for (int attempt = 0; attempt < bounds.length; attempt++) {
+            assertEquals(attempt, backoff.getAttempts());
+            long delay = backoff.next();
+            assertTrue(delay + " at attempt " + attempt, delay >= 0 && delay < bounds[attempt]);
+        }
+    }
+
+    @Test
+    public void delaysSpreadAcrossBound() {
+        long max = 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < SAMPLES; i++) {
+            Backoff backoff = new Backoff(1000, 60000);
+            long delay = backoff.next();
+            assertTrue(delay >= 0 && delay < 1000);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // Full jitter, not a fixed fraction of the bound
+        assertTrue(min < 100);
+        assertTrue(max > 900);
+    }
+
+    @Test
+    public void manyAttemptsDontOverflow() {
+        Backoff backoff = new Backoff(1000, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++)
+            assertTrue(backoff.next() >= 0);
+        for (int i = 0; i < SAMPLES; i++)
+            assertTrue(backoff.next() < 1000L << 20);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        Backoff backoff = new Backoff(100, 5000);
+        for (int i = 0; i < 10; i++)
+            backoff.next();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        for (int i = 0; i < SAMPLES; i++) {
+            backoff.reset();
+            assertTrue(backoff.next() < 100);
+        }
+    }
+}
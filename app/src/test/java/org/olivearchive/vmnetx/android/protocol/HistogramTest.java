@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    private static Histogram.Snapshot of(long... values) {
+        Histogram histogram = new Histogram();
+        for (long value : values)
+            histogram.record(value);
+        return histogram.snapshot();
+    }
+
+    @Test
+    public void empty() {
+        Histogram.Snapshot snapshot = of();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+        assertEquals("n=0", snapshot.format(1));
+    }
+
+    @Test
+    public void totals() {
+        Histogram.Snapshot snapshot = of(5, 1, 9, -3);
+        assertEquals(4, snapshot.getCount());
+        // Negative values count as 0
+        assertEquals(0, snapshot.getMin());
+        assertEquals(9, snapshot.getMax());
+        assertEquals(15 / 4.0, snapshot.getMean(), 1e-9);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        long[] values = new long[16];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        Histogram.Snapshot snapshot = of(values);
+        for (int i = 0; i < values.length; i++) {
+            double percentile = 100.0 * (i + 1) / values.length;
+            assertEquals(i, snapshot.getValueAtPercentile(percentile));
+        }
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+    }
+
+    // A value's bucket ends less than an eighth of the value above it.
+    // With a larger value also recorded, the median of the two is the
+    // top of the smaller one's bucket.
+    @Test
+    public void bucketsAreWithinAnEighth() {
+        for (int shift = 0; shift < 62; shift++) {
+            long base = 1L << shift;
+            long[] values = {base - 1, base, base + 1, base + base / 3};
+            for (long value : values) {
+                long top = of(value, Long.MAX_VALUE).getValueAtPercentile(50);
+                assertTrue(value + " in bucket ending " + top, top >= value);
+                assertTrue(value + " in bucket ending " + top, top - value <= value / 8);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreClampedToRange() {
+        Histogram.Snapshot snapshot = of(1000, 1001, 1002);
+        // All three share a bucket, which extends either side of them
+        assertEquals(1002, snapshot.getValueAtPercentile(50));
+        assertEquals(1002, snapshot.getValueAtPercentile(100));
+        assertEquals(1000, of(1000).getValueAtPercentile(0));
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i + 1;
+        Histogram.Snapshot snapshot = of(values);
+        for (int percentile : new int[] {1, 10, 50, 90, 99, 100}) {
+            long exact = values.length * percentile / 100;
+            long value = snapshot.getValueAtPercentile(percentile);
+            assertTrue(percentile + "th is " + value, value >= exact);
+            assertTrue(percentile + "th is " + value, value - exact <= exact / 8);
+        }
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void largestValues() {
+        Histogram.Snapshot snapshot = of(Long.MAX_VALUE, Long.MAX_VALUE - 1);
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(Long.MAX_VALUE, snapshot.getValueAtPercentile(100));
+        assertTrue(snapshot.getValueAtPercentile(1) >= Long.MAX_VALUE - 1);
+    }
+
+    @Test
+    public void formatScalesValues() {
+        String formatted = of(2000, 4000).format(1000);
+        assertTrue(formatted, formatted.startsWith("n=2 mean="));
+        assertTrue(formatted, formatted.endsWith(" p50=2 p90=4 p99=4 max=4"));
+    }
+}
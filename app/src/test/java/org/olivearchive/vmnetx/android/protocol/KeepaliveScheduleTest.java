@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeepaliveScheduleTest {
+    private static final long MS = 1000000;
+
+    private static void onTime(KeepaliveSchedule schedule, int pongs) {
+        for (int i = 0; i < pongs; i++)
+            schedule.pong(50 * MS, 50 * MS, 5 * MS);
+    }
+
+    @Test
+    public void defaultsWithoutServerTimeout() {
+        KeepaliveSchedule schedule = new KeepaliveSchedule(0, 0);
+        assertEquals(3000, schedule.getInterval());
+        assertEquals(3, schedule.getLossThreshold());
+    }
+
+    @Test
+    public void prefersMinimumTimeout() {
+        // A third of 30 s to detect a dead link, so at most 5 s between
+        // pings
+        KeepaliveSchedule schedule = new KeepaliveSchedule(30, 600);
+        onTime(schedule, 100);
+        assertEquals(5000, schedule.getInterval());
+        assertEquals(2, schedule.getLossThreshold());
+
+        schedule = new KeepaliveSchedule(0, 90);
+        onTime(schedule, 100);
+        assertEquals(15000, schedule.getInterval());
+    }
+
+    @Test
+    public void growsAfterHealthyStreak() {
+        KeepaliveSchedule schedule = new KeepaliveSchedule(60, 0);
+        onTime(schedule, 3);
+        assertEquals(3000, schedule.getInterval());
+        onTime(schedule, 1);
+        assertEquals(4500, schedule.getInterval());
+        assertEquals(4, schedule.getLossThreshold());
+        // Unknown RTTs count as on time
+        for (int i = 0; i < 4; i++)
+            schedule.pong(-1, -1, 0);
+        assertEquals(6750, schedule.getInterval());
+        assertEquals(2, schedule.getLossThreshold());
+    }
+
+    @Test
+    public void latePongTightens() {
+        KeepaliveSchedule schedule = new KeepaliveSchedule(60, 0);
+        onTime(schedule, 3);
+        // Within 200 ms of the smoothed RTT is still on time
+        schedule.pong(249 * MS, 50 * MS, 5 * MS);
+        assertEquals(4500, schedule.getInterval());
+        // Four times the jitter is more than 200 ms here
+        schedule.pong(449 * MS, 50 * MS, 100 * MS);
+        assertEquals(4500, schedule.getInterval());
+        schedule.pong(451 * MS, 50 * MS, 100 * MS);
+        assertEquals(2250, schedule.getInterval());
+        // The streak starts over
+        onTime(schedule, 3);
+        assertEquals(2250, schedule.getInterval());
+    }
+
+    @Test
+    public void missedPingsTightenToFloor() {
+        KeepaliveSchedule schedule = new KeepaliveSchedule(60, 0);
+        schedule.missed();
+        assertEquals(1500, schedule.getInterval());
+        schedule.missed();
+        assertEquals(1000, schedule.getInterval());
+        schedule.missed();
+        assertEquals(1000, schedule.getInterval());
+        assertEquals(4, schedule.getLossThreshold());
+    }
+
+    @Test
+    public void shortTimeoutKeepsMinimums() {
+        KeepaliveSchedule schedule = new KeepaliveSchedule(1, 1);
+        assertEquals(1000, schedule.getInterval());
+        assertEquals(2, schedule.getLossThreshold());
+        onTime(schedule, 100);
+        assertEquals(1000, schedule.getInterval());
+    }
+
+    // However the link behaves, a dead link is noticed within the budget
+    @Test
+    public void detectionFitsBudget() {
+        Random random = new Random(1);
+        int[] timeouts = {0, 1, 6, 10, 30, 120, 3600};
+        for (int timeout : timeouts) {
+            long budget = timeout == 0 ? 9000 : Math.max(timeout * 1000L / 3, 2000);
+            KeepaliveSchedule schedule = new KeepaliveSchedule(timeout, 0);
+            for (int i = 0; i < 1000; i++) {
+                if (random.nextInt(4) == 0)
+                    schedule.missed();
+                else
+                    onTime(schedule, 1);
+                long interval = schedule.getInterval();
+                int loss = schedule.getLossThreshold();
+                assertTrue(schedule.toString(), interval >= 1000 && interval <= 30000);
+                assertTrue(schedule.toString(), loss >= 2 && loss <= 4);
+                assertTrue(schedule.toString(), interval * loss <= budget);
+            }
+        }
+    }
+}
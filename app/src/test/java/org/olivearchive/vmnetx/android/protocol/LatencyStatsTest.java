@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyStatsTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void smoothsAndTracksJitter() {
+        LatencyStats stats = new LatencyStats();
+        assertEquals(-1, stats.getSmoothedRtt());
+        stats.record(0, 80 * MS);
+        assertEquals(80 * MS, stats.getSmoothedRtt());
+        assertEquals(0, stats.getJitter());
+        stats.record(1, 160 * MS);
+        assertEquals(90 * MS, stats.getSmoothedRtt());
+        assertEquals(5 * MS, stats.getJitter());
+        assertEquals(160 * MS, stats.getLastRtt());
+        assertEquals(2, stats.getRttHistogram().getCount());
+        assertEquals(0, stats.getUnmatched());
+    }
+
+    @Test
+    public void newConnectionRestartsSequence() {
+        LatencyStats stats = new LatencyStats();
+        stats.record(0, 80 * MS);
+        stats.record(1, 80 * MS);
+        stats.newConnection();
+        stats.record(0, 160 * MS);
+        assertEquals(0, stats.getUnmatched());
+        assertEquals(0, stats.getLastSequence());
+        // No jitter from comparing RTTs across connections
+        assertEquals(0, stats.getJitter());
+        assertEquals(90 * MS, stats.getSmoothedRtt());
+        assertEquals(3, stats.getRttHistogram().getCount());
+    }
+
+    @Test
+    public void countsGapsAndUnknownPings() {
+        LatencyStats stats = new LatencyStats();
+        stats.record(0, 80 * MS);
+        // Ping 1 went unanswered
+        stats.record(2, 80 * MS);
+        assertEquals(1, stats.getUnmatched());
+        // Without newConnection(), a restart looks like a gap
+        stats.record(0, 80 * MS);
+        assertEquals(2, stats.getUnmatched());
+        // A pong we never asked for
+        stats.record(-1, -1);
+        assertEquals(3, stats.getUnmatched());
+        assertEquals(3, stats.getRttHistogram().getCount());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import net.asdfa.msgpack.MsgPack;
+
+import org.olivearchive.vmnetx.android.Constants;
+
+public class MessageReaderTest {
+    @BeforeClass
+    public static void registerTypes() {
+        // As ProtocolEndpoint does for the types it handles
+        MsgPack.registerString("auth-ok");
+        MsgPack.registerString("startup-progress");
+    }
+
+    private static MessageReader reader(Object... entries) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < entries.length; i += 2)
+            map.put((String) entries[i], entries[i + 1]);
+        return new MessageReader(ByteBuffer.wrap(MsgPack.pack(map)));
+    }
+
+    private static Messages.AuthOk authOk(MessageReader in) throws ProtocolException {
+        assertSame("auth-ok", in.readType());
+        Messages.AuthOk msg = new Messages.AuthOk();
+        msg.decode(in);
+        return msg;
+    }
+
+    @Test
+    public void typeFirst() throws Exception {
+        Messages.AuthOk msg = authOk(reader("_", "auth-ok", "state", "running",
+                "name", "vm", "limit_mouse_rate", 60, "server_timeout_max", 600));
+        assertEquals(Constants.VM_STATE_RUNNING, msg.state);
+        assertEquals("vm", msg.name);
+        assertEquals(60, msg.limitMouseRate);
+        assertEquals(0, msg.serverTimeoutMin);
+        assertEquals(600, msg.serverTimeoutMax);
+    }
+
+    @Test
+    public void fieldsOnBothSidesOfType() throws Exception {
+        Messages.AuthOk msg = authOk(reader("name", "vm", "extra", Arrays.asList(1, 2),
+                "_", "auth-ok", "state", "stopped", "server_timeout_min", 30));
+        assertEquals(Constants.VM_STATE_STOPPED, msg.state);
+        assertEquals("vm", msg.name);
+        assertEquals(30, msg.serverTimeoutMin);
+    }
+
+    @Test
+    public void typeLast() throws Exception {
+        Messages.AuthOk msg = authOk(reader("state", "starting", "name", "vm",
+                "_", "auth-ok"));
+        assertEquals(Constants.VM_STATE_STARTING, msg.state);
+        assertEquals("vm", msg.name);
+    }
+
+    @Test
+    public void nonStringKeysAreIgnored() throws Exception {
+        Map<Object, Object> nested = new LinkedHashMap<Object, Object>();
+        nested.put("state", "running");
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        map.put(7, "ignored");
+        map.put(Arrays.asList("name", "other"), "ignored");
+        map.put("name", "vm");
+        map.put(nested, Arrays.asList(1, 2));
+        map.put("_", "auth-ok");
+        map.put(true, "ignored");
+        map.put("state", "stopped");
+        map.put(2.5, 1);
+        Messages.AuthOk msg = authOk(new MessageReader(ByteBuffer.wrap(MsgPack.pack(map))));
+        assertEquals(Constants.VM_STATE_STOPPED, msg.state);
+        assertEquals("vm", msg.name);
+    }
+
+    @Test
+    public void nilCountsAsAbsent() throws Exception {
+        try {
+            authOk(reader("_", "auth-ok", "state", "running", "name", null));
+            fail("missing name was accepted");
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().contains("name"));
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void wrongFieldType() throws Exception {
+        authOk(reader("_", "auth-ok", "state", "running", "name", 5));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void intOutOfRange() throws Exception {
+        authOk(reader("_", "auth-ok", "state", "running", "name", "vm",
+                "limit_mouse_rate", 1L << 40));
+    }
+
+    @Test
+    public void doubleAcceptsInt() throws Exception {
+        MessageReader in = reader("_", "startup-progress", "fraction", 1);
+        assertSame("startup-progress", in.readType());
+        Messages.StartupProgress msg = new Messages.StartupProgress();
+        msg.decode(in);
+        assertEquals(1.0, msg.fraction, 0);
+    }
+
+    @Test
+    public void longTypeIsCanonical() throws Exception {
+        String type = MsgPack.registerString("a-message-type-longer-than-the-key-cache-allows");
+        assertSame(type, reader("_", new String(type.toCharArray())).readType());
+    }
+
+    @Test
+    public void unknownTypeIsDecoded() throws Exception {
+        assertEquals("no-such-message", reader("_", "no-such-message").readType());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void missingType() throws Exception {
+        reader("state", "running").readType();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void nonStringType() throws Exception {
+        reader("_", 3).readType();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void notAMap() throws Exception {
+        new MessageReader(ByteBuffer.wrap(MsgPack.pack("auth-ok"))).readType();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedContainerIsRejected() throws Exception {
+        // Within the frame, but over the element limit
+        Object[] values = new Object[(int) MessageReader.RECV_LIMITS.maxElements + 1];
+        Arrays.fill(values, 0);
+        MessageReader in = reader("junk", Arrays.asList(values), "_", "auth-ok");
+        in.readType();
+    }
+}
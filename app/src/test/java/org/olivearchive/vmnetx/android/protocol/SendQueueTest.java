@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+    private static final int CONTROL_CAPACITY = 32;
+
+    private static ByteBuffer frame(int id) {
+        ByteBuffer frame = ByteBuffer.allocate(4);
+        frame.putInt(0, id);
+        return frame;
+    }
+
+    private static int[] pollIds(SendQueue queue, int count) {
+        ByteBuffer[] frames = new ByteBuffer[count];
+        SendFuture[] futures = new SendFuture[count];
+        int moved = queue.poll(frames, futures, 0, count);
+        int[] ids = new int[moved];
+        for (int i = 0; i < moved; i++) {
+            assertNotNull(futures[i]);
+            ids[i] = frames[i].getInt(0);
+        }
+        return ids;
+    }
+
+    @Test
+    public void controlOvertakesKeepalive() {
+        SendQueue queue = new SendQueue();
+        queue.offer(frame(1), SendQueue.PRIORITY_KEEPALIVE);
+        queue.offer(frame(2), SendQueue.PRIORITY_CONTROL);
+        queue.offer(frame(3), SendQueue.PRIORITY_CONTROL);
+        assertEquals(3, queue.size());
+        assertArrayEquals(new int[] {2, 3, 1}, pollIds(queue, 8));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void pollStopsAtCount() {
+        SendQueue queue = new SendQueue();
+        for (int i = 0; i < 3; i++)
+            queue.offer(frame(i), SendQueue.PRIORITY_CONTROL);
+        queue.offer(frame(9), SendQueue.PRIORITY_KEEPALIVE);
+
+        ByteBuffer[] frames = new ByteBuffer[4];
+        SendFuture[] futures = new SendFuture[4];
+        assertEquals(2, queue.poll(frames, futures, 1, 2));
+        assertNull(frames[0]);
+        assertEquals(0, frames[1].getInt(0));
+        assertEquals(1, frames[2].getInt(0));
+        assertEquals(2, queue.size());
+        assertArrayEquals(new int[] {2, 9}, pollIds(queue, 4));
+    }
+
+    @Test
+    public void keepalivesMerge() {
+        SendQueue queue = new SendQueue();
+        SendFuture first = queue.offer(frame(1), SendQueue.PRIORITY_KEEPALIVE);
+        SendFuture second = queue.offer(frame(2), SendQueue.PRIORITY_KEEPALIVE);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        assertEquals(1, queue.size());
+        assertArrayEquals(new int[] {1}, pollIds(queue, 8));
+
+        // Once the first has gone, the next is queued afresh
+        SendFuture third = queue.offer(frame(3), SendQueue.PRIORITY_KEEPALIVE);
+        assertNotSame(first, third);
+        assertArrayEquals(new int[] {3}, pollIds(queue, 8));
+    }
+
+    @Test
+    public void fullLaneRefuses() {
+        SendQueue queue = new SendQueue();
+        for (int i = 0; i < CONTROL_CAPACITY; i++)
+            assertFalse(queue.offer(frame(i), SendQueue.PRIORITY_CONTROL).isDone());
+        SendFuture refused = queue.offer(frame(-1), SendQueue.PRIORITY_CONTROL);
+        assertTrue(refused.isFailed());
+        assertEquals(CONTROL_CAPACITY, queue.size());
+        // The keepalive lane is separate
+        assertFalse(queue.offer(frame(-2), SendQueue.PRIORITY_KEEPALIVE).isDone());
+    }
+
+    @Test
+    public void closeFailsEverything() throws Exception {
+        SendQueue queue = new SendQueue();
+        SendFuture control = queue.offer(frame(1), SendQueue.PRIORITY_CONTROL);
+        SendFuture keepalive = queue.offer(frame(2), SendQueue.PRIORITY_KEEPALIVE);
+        queue.close();
+        assertEquals(0, queue.size());
+        assertFalse(control.get());
+        assertFalse(keepalive.get());
+        assertTrue(queue.offer(frame(3), SendQueue.PRIORITY_CONTROL).isFailed());
+        assertTrue(queue.offer(frame(4), SendQueue.PRIORITY_KEEPALIVE).isFailed());
+        assertEquals(0, pollIds(queue, 8).length);
+    }
+}
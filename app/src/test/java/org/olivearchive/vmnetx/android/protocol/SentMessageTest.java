@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import net.asdfa.msgpack.MsgPack;
+
+public class SentMessageTest {
+    // Checks the length header and returns the decoded message map
+    private static Map<?, ?> unframe(ByteBuffer frame) throws Exception {
+        int length = frame.getInt(frame.position());
+        assertEquals(frame.remaining() - 4, length);
+        byte[] data = new byte[length];
+        ByteBuffer view = frame.duplicate();
+        view.position(view.position() + 4);
+        view.get(data);
+        return (Map<?, ?>) MsgPack.unpack(data, MsgPack.UNPACK_RAW_AS_STRING);
+    }
+
+    @Test
+    public void authenticateEncodesItsFields() throws Exception {
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        expected.put("_", "authenticate");
+        expected.put("token", "caf\u00e9-token");
+        assertEquals(expected, unframe(new Messages.Authenticate("caf\u00e9-token").encode()));
+    }
+
+    @Test
+    public void templateFramesAreShared() throws Exception {
+        ByteBuffer first = Messages.PING.frame();
+        ByteBuffer second = Messages.PING.frame();
+        assertNotSame(first, second);
+        assertTrue(first.isReadOnly());
+        assertEquals(first, second);
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        expected.put("_", "ping");
+        assertEquals(expected, unframe(first));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void templateWithFieldsNeedsEncoder() {
+        new MessageTemplate("authenticate", "token").frame();
+    }
+}
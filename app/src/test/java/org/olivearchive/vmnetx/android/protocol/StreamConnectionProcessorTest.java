@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+
+package org.olivearchive.vmnetx.android.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.asdfa.msgpack.MsgPack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamConnectionProcessorTest {
+    private static final int TIMEOUT_MS = 5000;
+
+    // Reads one length-prefixed frame
+    private static Map<?, ?> readFrame(Socket socket) throws Exception {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return (Map<?, ?>) MsgPack.unpack(data, MsgPack.UNPACK_RAW_AS_STRING);
+    }
+
+    private static void writeFrame(Socket socket, Map<String, Object> msg) throws Exception {
+        byte[] data = MsgPack.pack(msg);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    @Test
+    public void coalescedFrameIsSentWhenWindowCloses() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        ControlConnectionProcessor conn = new ControlConnectionProcessor("127.0.0.1",
+                server.getLocalPort());
+        try {
+            // One frame is far short of a full batch, so only the window
+            // closing can send it
+            conn.setCoalesceWindow(50);
+            final CountDownLatch connected = new CountDownLatch(1);
+            final CountDownLatch authenticated = new CountDownLatch(1);
+            ClientProtocolEndpoint endpoint = new ClientProtocolEndpoint(conn,
+                    new ProtocolListener.Adapter() {
+                @Override
+                public void onConnected() {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onAuthOk(int state, String name, int limitMouseRate,
+                        int serverTimeoutMin, int serverTimeoutMax) {
+                    authenticated.countDown();
+                }
+            });
+            conn.start();
+            Socket socket = server.accept();
+            socket.setSoTimeout(TIMEOUT_MS);
+            assertTrue(connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            endpoint.sendAuthenticate("token");
+            Map<?, ?> msg = readFrame(socket);
+            assertEquals("authenticate", msg.get("_"));
+            assertEquals("token", msg.get("token"));
+
+            // The queue emptied, so the next frame waits out a window of
+            // its own and is then sent too
+            Map<String, Object> authOk = new HashMap<String, Object>();
+            authOk.put("_", "auth-ok");
+            authOk.put("state", "running");
+            authOk.put("name", "vm");
+            writeFrame(socket, authOk);
+            assertTrue(authenticated.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            endpoint.sendPing();
+            assertEquals("ping", readFrame(socket).get("_"));
+        } finally {
+            conn.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2016 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package net.asdfa.msgpack;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.olivearchive.vmnetx.android.bench.Corpus;
+
+/**
+ * Pack and unpack throughput for each of the codec's entry points, over
+ * typical control messages.  Run with -prof gc to see bytes allocated
+ * per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MsgPackBenchmark {
+	private static final int OPTIONS = MsgPack.UNPACK_RAW_AS_STRING | MsgPack.UNPACK_INTERN_STRINGS;
+
+	@Param({Corpus.AUTH_OK, Corpus.STARTUP_PROGRESS, Corpus.PONG})
+	public String mtype;
+
+	private Map<String, Object> message;
+	private byte[] payload;
+	private ByteBuffer payloadBuffer;
+	private ByteBuffer readOnlyBuffer;
+	private BufferPacker packer;
+
+	@Setup
+	public void setup() {
+		message = Corpus.message(mtype);
+		payload = Corpus.payload(mtype);
+		payloadBuffer = Corpus.payloadBuffer(mtype);
+		readOnlyBuffer = payloadBuffer.asReadOnlyBuffer();
+		packer = new BufferPacker(ByteBuffer.allocate(256));
+	}
+
+	@Benchmark
+	public byte[] packStream() {
+		return MsgPack.pack(message);
+	}
+
+	@Benchmark
+	public ByteBuffer packBuffer() {
+		packer.reset(packer.getBuffer());
+		packer.beginFrame();
+		packer.pack(message);
+		return packer.endFrame();
+	}
+
+	@Benchmark
+	public Object unpackStream() throws InvalidMsgPackDataException {
+		return MsgPack.unpack(payload, OPTIONS);
+	}
+
+	@Benchmark
+	public Object unpackBuffer() throws InvalidMsgPackDataException {
+		return MsgPack.unpack(payloadBuffer.duplicate(), OPTIONS);
+	}
+
+	@Benchmark
+	public Object unpackReadOnlyBuffer() throws InvalidMsgPackDataException {
+		// No accessible array, so strings are decoded a byte at a time
+		return MsgPack.unpack(readOnlyBuffer.duplicate(), OPTIONS);
+	}
+
+	@Benchmark
+	public void read(Blackhole bh) throws InvalidMsgPackDataException {
+		MsgPack.Reader reader = new MsgPack.Reader(payloadBuffer.duplicate(), OPTIONS);
+		while (reader.hasNext()) {
+			MsgPack.Token token = reader.next();
+			switch (token) {
+				case STRING:
+				case KEY:
+					bh.consume(reader.getString());
+					break;
+				case INT:
+					bh.consume(reader.getLong());
+					break;
+				case FLOAT:
+					bh.consume(reader.getDouble());
+					break;
+				default:
+					bh.consume(token);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Carnegie Mellon University
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of version 2 of the GNU General Public License as published
+ * by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * for more details.
+ */
+
+package org.olivearchive.vmnetx.android.bench;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.asdfa.msgpack.MsgPack;
+
+// Control messages as the server sends them, for benchmarks.  Payloads
+// exclude the length header, as handed to ProtocolEndpoint.dispatch().
+public final class Corpus {
+    public static final String AUTH_OK = "auth-ok";
+    public static final String STARTUP_PROGRESS = "startup-progress";
+    public static final String PONG = "pong";
+
+    private Corpus() {}
+
+    public static Map<String, Object> message(String mtype) {
+        Map<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put("_", mtype);
+        if (mtype.equals(AUTH_OK)) {
+            msg.put("state", "running");
+            msg.put("name", "Windows 7 Enterprise SP1 (x64)");
+            msg.put("limit_mouse_rate", 60);
+            msg.put("server_timeout_min", 30);
+            msg.put("server_timeout_max", 600);
+        } else if (mtype.equals(STARTUP_PROGRESS)) {
+            msg.put("fraction", 0.4375);
+        } else if (!mtype.equals(PONG)) {
+            throw new IllegalArgumentException("Unknown message type " + mtype);
+        }
+        return msg;
+    }
+
+    public static byte[] payload(String mtype) {
+        return MsgPack.pack(message(mtype));
+    }
+
+    public static ByteBuffer payloadBuffer(String mtype) {
+        return ByteBuffer.wrap(payload(mtype));
+    }
+}